@@ -17,6 +17,7 @@ import com.github.twitch4j.pubsub.events.ChannelPointsRedemptionEvent;
 import com.github.twitch4j.pubsub.events.ChannelSubGiftEvent;
 import com.github.twitch4j.pubsub.events.ChannelSubscribeEvent;
 import com.github.twitch4j.tmi.domain.Chatters;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.sun.net.httpserver.HttpServer;
 import lombok.Getter;
 import me.mini_bomba.streamchatmod.asm.hooks.FontRendererHook;
@@ -24,7 +25,11 @@ import me.mini_bomba.streamchatmod.commands.TwitchChatCommand;
 import me.mini_bomba.streamchatmod.commands.TwitchCommand;
 import me.mini_bomba.streamchatmod.runnables.TwitchFollowSoundScheduler;
 import me.mini_bomba.streamchatmod.runnables.TwitchMessageHandler;
-import net.minecraft.client.Minecraft;
+import me.mini_bomba.streamchatmod.utils.ChannelRateGovernor;
+import me.mini_bomba.streamchatmod.utils.EmoteDownloader;
+import me.mini_bomba.streamchatmod.utils.EmoteTextureCache;
+import me.mini_bomba.streamchatmod.utils.MessageCoalescer;
+import me.mini_bomba.streamchatmod.utils.ModerationBatcher;
 import net.minecraft.client.gui.GuiScreen;
 import net.minecraft.event.ClickEvent;
 import net.minecraft.event.HoverEvent;
@@ -62,6 +67,8 @@ public class StreamChatMod {
     @SuppressWarnings("MismatchedStringCase")
     public static final boolean PRERELEASE = "@PRERELEASE@".equals("true");
     private static final Logger LOGGER = LogManager.getLogger();
+    // Smallest ban wave that gets a summary line in chat
+    private static final int MODERATION_SUMMARY_MIN_USERS = 3;
     public StreamConfig config;
     public StreamKeybinds keybinds;
     @Nullable
@@ -91,6 +98,18 @@ public class StreamChatMod {
     private ScheduledThreadPoolExecutor asyncExecutor;
     // Flag for scheduling actions that may break other actions, such as Twitch client stopping/starting
     private final AtomicBoolean importantActionScheduled = new AtomicBoolean(false);
+    // Worker pool that builds chat components for incoming Twitch messages
+    private final ExecutorService messageExecutor = Executors.newFixedThreadPool(
+            Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2)),
+            new ThreadFactoryBuilder().setNameFormat("StreamChatMod Message Handler #%d").setDaemon(true).build());
+    // Tail of the message pipeline, used to publish built messages in the order they were received
+    private CompletableFuture<Void> messagePipeline = CompletableFuture.completedFuture(null);
+    // Message rate governors of joined channels, by channel ID
+    private final Map<String, ChannelRateGovernor> rateGovernors = new ConcurrentHashMap<>();
+    // Folds repeated messages into a single chat line
+    private final MessageCoalescer messageCoalescer = new MessageCoalescer();
+    // Collects timeouts & bans, so ban waves are handled in one go
+    private final ModerationBatcher moderationBatcher = new ModerationBatcher();
 
     // The update checker future, scheduled via the asyncExecutor
     public ScheduledFuture<?> updateChecker = null;
@@ -206,10 +225,29 @@ public class StreamChatMod {
         if (twitch != null) {
             ProgressManager.ProgressBar emoteProgress = ProgressManager.push("Syncing emotes", 11);
             List<String> channelIds = Arrays.stream(config.twitchChannels.getStringList()).map(this::getTwitchUserByName).filter(Objects::nonNull).map(User::getId).collect(Collectors.toList());
-            emotes.syncGlobalBadges(emoteProgress);
-            emotes.syncAllChannelBadges(emoteProgress, channelIds);
-            emotes.syncGlobalEmotes(emoteProgress);
-            emotes.syncAllChannelEmotes(emoteProgress, channelIds);
+            if (emotes.loadFromIndex(emoteProgress, channelIds)) {
+                // Emotes were loaded from the index, refresh them in the background
+                emotes.syncAll(null, channelIds).all.whenCompleteAsync((result, e) -> {
+                    if (e != null) LOGGER.error("Failed to refresh emote cache", e);
+                    else LOGGER.info("Refreshed emote cache");
+                    emotes.compactCache();
+                }, asyncExecutor);
+            } else {
+                // Only the global sets are needed for the first chat messages, channel sets finish in the background
+                StreamEmotes.Sync sync = emotes.syncAll(emoteProgress, channelIds);
+                try {
+                    sync.globals.join();
+                } catch (CompletionException e) {
+                    LOGGER.error("Failed to sync global emotes", e);
+                }
+                while (emoteProgress.getStep() < emoteProgress.getSteps())
+                    emoteProgress.step("Channel emotes continue in the background");
+                sync.all.whenCompleteAsync((result, e) -> {
+                    if (e != null) LOGGER.error("Failed to sync emote cache", e);
+                    else LOGGER.info("Synced emote cache");
+                    emotes.compactCache();
+                }, asyncExecutor);
+            }
             ProgressManager.pop(emoteProgress);
         }
         ProgressManager.pop(progress);
@@ -243,6 +281,7 @@ public class StreamChatMod {
         }
         config = new StreamConfig(event.getSuggestedConfigurationFile());
         FontRendererHook.setAllowAnimated(config.allowAnimatedEmotes.getBoolean());
+        EmoteTextureCache.setBudget(Math.max(1, config.emoteTextureBudget.getInt()) * 1024L * 1024L);
     }
 
     @EventHandler
@@ -252,6 +291,7 @@ public class StreamChatMod {
         twitch.getPubSub().close();
 
         config.saveIfChanged();
+        messageExecutor.shutdownNow();
         asyncExecutor.shutdown();
         boolean terminated = false;
         try {
@@ -461,6 +501,9 @@ public class StreamChatMod {
             if (config.followEventEnabled.getBoolean()) twitch.getClientHelper().disableFollowEventListener(channel);
             config.twitchChannels.set(Arrays.stream(config.twitchChannels.getStringList()).filter(c -> !c.equalsIgnoreCase(channel)).toArray(String[]::new));
             config.saveIfChanged();
+            rateGovernors.values().removeIf(governor -> governor.channelName.equalsIgnoreCase(channel));
+            User user = getTwitchUserByName(channel);
+            if (user != null) emotes.removeChannel(user.getId());
             StreamUtils.queueAddMessage(EnumChatFormatting.GREEN+"Left "+channel+"'s chat!");
         });
     }
@@ -742,7 +785,106 @@ public class StreamChatMod {
 
 
     private void onTwitchMessage(ChannelMessageEvent event) {
-        Minecraft.getMinecraft().addScheduledTask(new TwitchMessageHandler(this, event));
+        // Hidden messages must not be counted or registered, otherwise they would show up in summaries & fold repeats from other users into nothing
+        if (new TwitchMessageHandler(this, event).isHidden()) return;
+        if (config.twitchThrottlingEnabled.getBoolean()) {
+            ChannelRateGovernor governor = rateGovernors.computeIfAbsent(event.getChannel().getId(), id -> new ChannelRateGovernor(id, event.getChannel().getName()));
+            boolean mentioned = TwitchMessageHandler.isMention(this, event.getMessage());
+            if (governor.onMessage(event.getMessage(), mentioned, config.getRateThresholds(), System.currentTimeMillis()) == ChannelRateGovernor.Action.HIDE)
+                return;
+        }
+        ChatComponentText counter = null;
+        if (config.twitchCoalesceDuplicates.getBoolean()) {
+            counter = messageCoalescer.offer(event.getChannel().getId(), event.getMessage(), System.currentTimeMillis(), getCoalesceWindowMillis());
+            if (counter == null) return;
+        }
+        ChatComponentText messageCounter = counter;
+        TwitchMessageHandler handler = new TwitchMessageHandler(this, event, counter);
+        CompletableFuture<IChatComponent> message = CompletableFuture.supplyAsync(handler::buildMessage, messageExecutor)
+                .exceptionally(e -> {
+                    LOGGER.error("Failed to process a Twitch message", e);
+                    return null;
+                });
+        // Messages are built in parallel, but published in the order they were received
+        synchronized (messageExecutor) {
+            messagePipeline = messagePipeline.thenCombine(message, (ignored, component) -> {
+                try {
+                    if (component != null) {
+                        if (messageCounter != null) messageCoalescer.attach(messageCounter, component);
+                        handler.publish(component);
+                    }
+                } catch (Exception e) {
+                    LOGGER.error("Failed to publish a Twitch message", e);
+                }
+                return null;
+            });
+        }
+    }
+
+    /**
+     * Updates counters of folded repeated messages<br>
+     * <b>Must be called from the client thread</b>, once per tick.
+     */
+    public void tickMessageCoalescer() {
+        messageCoalescer.tick(System.currentTimeMillis(), getCoalesceWindowMillis());
+    }
+
+    /**
+     * Removes messages of users timed out or banned recently & adds a summary of large ban waves to the chat<br>
+     * <b>Must be called from the client thread</b>, once per tick.
+     */
+    public void tickModerationBatcher() {
+        for (ModerationBatcher.Batch batch : moderationBatcher.poll(System.currentTimeMillis())) {
+            if (config.allowMessageDeletion.getBoolean())
+                StreamUtils.clearTwitchUserMessages(batch.channelId, batch.getUsers());
+            if (batch.timedOut.size() + batch.banned.size() < MODERATION_SUMMARY_MIN_USERS) continue;
+            List<String> parts = new ArrayList<>(2);
+            if (!batch.timedOut.isEmpty())
+                parts.add(batch.timedOut.size() + " user" + (batch.timedOut.size() == 1 ? "" : "s") + " timed out");
+            if (!batch.banned.isEmpty())
+                parts.add(batch.banned.size() + " user" + (batch.banned.size() == 1 ? "" : "s") + " banned");
+            StreamUtils.addMessage(config.getTwitchPrefixWithChannel(batch.channelName) + " " + EnumChatFormatting.GRAY + String.join(" & ", parts) + " in #" + batch.channelName);
+        }
+    }
+
+    private long getCoalesceWindowMillis() {
+        return Math.max(0, config.twitchCoalesceWindow.getInt()) * 1000L;
+    }
+
+    /**
+     * Updates the mode of each channel's rate governor & adds summaries of throttled messages to the chat<br>
+     * <b>Must be called from the client thread</b>, once per tick.
+     */
+    public void tickRateGovernors() {
+        if (rateGovernors.isEmpty()) return;
+        ChannelRateGovernor.Thresholds thresholds = config.getRateThresholds();
+        long now = System.currentTimeMillis();
+        for (ChannelRateGovernor governor : rateGovernors.values()) {
+            ChannelRateGovernor.Summary summary = governor.poll(thresholds, now);
+            if (summary == null) continue;
+            String prefix = config.getTwitchPrefixWithChannel(governor.channelName) + " ";
+            String rate = String.format("%.0f msg/s", summary.rate);
+            if (summary.previousMode != null) {
+                if (summary.mode.ordinal() > summary.previousMode.ordinal())
+                    StreamUtils.addMessage(prefix + EnumChatFormatting.GRAY + "Chat is very busy (" + rate + "), switching to " + summary.mode.color + summary.mode.description + EnumChatFormatting.GRAY + " mode");
+                else
+                    StreamUtils.addMessage(prefix + EnumChatFormatting.GRAY + "Chat calmed down (" + rate + "), switching to " + summary.mode.color + summary.mode.description + EnumChatFormatting.GRAY + " mode");
+            }
+            if (!summary.aggregated.isEmpty()) {
+                IChatComponent component = new ChatComponentText(prefix);
+                boolean first = true;
+                for (Map.Entry<String, Integer> entry : summary.aggregated) {
+                    component.appendSibling(new ChatComponentText((first ? "" : EnumChatFormatting.GRAY + ", ") + EnumChatFormatting.GOLD + "x" + entry.getValue() + " " + EnumChatFormatting.RESET));
+                    // Aggregated texts are sent by many chatters, so formatting is never allowed in them
+                    TwitchMessageHandler.processEmotes(this, TwitchMessageHandler.processColorCodes(entry.getKey(), false), governor.channelId).forEach(component::appendSibling);
+                    first = false;
+                }
+                if (summary.hiddenMessages > 0)
+                    component.appendSibling(new ChatComponentText(EnumChatFormatting.GRAY + " (+" + summary.hiddenMessages + " more)"));
+                StreamUtils.addMessage(component);
+            } else if (summary.hiddenMessages > 0)
+                StreamUtils.addMessage(prefix + EnumChatFormatting.GRAY + EnumChatFormatting.ITALIC + summary.hiddenMessages + " message" + (summary.hiddenMessages == 1 ? "" : "s") + " hidden (" + summary.mode.description + " mode, " + rate + ")");
+        }
     }
 
     private void onTwitchRaid(RaidEvent event){
@@ -878,13 +1020,11 @@ public class StreamChatMod {
     }
 
     private void onUserTimedOut(UserTimeoutEvent event) {
-        if (config.allowMessageDeletion.getBoolean())
-            StreamUtils.queueClearTwitchUserMessages(event.getChannel().getId(), event.getUser().getId());
+        moderationBatcher.offer(event.getChannel().getId(), event.getChannel().getName(), event.getUser().getId(), false, System.currentTimeMillis());
     }
 
     private void onUserBanned(UserBanEvent event) {
-        if (config.allowMessageDeletion.getBoolean())
-            StreamUtils.queueClearTwitchUserMessages(event.getChannel().getId(), event.getUser().getId());
+        moderationBatcher.offer(event.getChannel().getId(), event.getChannel().getName(), event.getUser().getId(), true, System.currentTimeMillis());
     }
 
     private void onTwitchNotice(ChannelNoticeEvent event) {
@@ -975,6 +1115,14 @@ public class StreamChatMod {
                     prefix + EnumChatFormatting.GRAY + "Formatted messages: " + (config.allowFormatting.getBoolean() ? (config.subOnlyFormatting.getBoolean() ? EnumChatFormatting.GOLD + "Subscriber+ only" : EnumChatFormatting.GREEN + "Enabled") : EnumChatFormatting.RED + "Disabled"),
                     prefix + EnumChatFormatting.GRAY + "Minecraft chat mode: " + (config.twitchMessageRedirectEnabled.getBoolean() ? EnumChatFormatting.DARK_PURPLE + "Redirect to selected Twitch channel" : EnumChatFormatting.GREEN + "Send to Minecraft server") + EnumChatFormatting.GRAY + " (/twitch mode)"
             });
+            if (config.twitchThrottlingEnabled.getBoolean()) {
+                long now = System.currentTimeMillis();
+                for (ChannelRateGovernor governor : rateGovernors.values())
+                    StreamUtils.addMessage(prefix + EnumChatFormatting.GRAY + "Chat rate in " + EnumChatFormatting.AQUA + governor.channelName + EnumChatFormatting.GRAY + ": " + EnumChatFormatting.AQUA + String.format("%.1f msg/s", governor.getRate(now)) + EnumChatFormatting.GRAY + " (" + governor.getMode().color + governor.getMode().description + EnumChatFormatting.GRAY + ")");
+            } else
+                StreamUtils.addMessage(prefix + EnumChatFormatting.GRAY + "Chat throttling: " + EnumChatFormatting.RED + "Disabled");
+            for (EmoteDownloader.HostStats stats : EmoteDownloader.getStats())
+                StreamUtils.addMessage(prefix + EnumChatFormatting.GRAY + "Emote downloads from " + EnumChatFormatting.AQUA + stats.host + EnumChatFormatting.GRAY + ": " + EnumChatFormatting.AQUA + stats.downloads + EnumChatFormatting.GRAY + " files, " + EnumChatFormatting.AQUA + String.format("%.1f KB/s", stats.throughput / 1024) + EnumChatFormatting.GRAY + ", " + (stats.failures > 0 ? EnumChatFormatting.RED : EnumChatFormatting.AQUA) + stats.failures + EnumChatFormatting.GRAY + " failed, " + EnumChatFormatting.AQUA + stats.retries + EnumChatFormatting.GRAY + " retries");
             // Warn about missing scopes
             checkScopes();
             if (config.twitchMessageRedirectEnabled.getBoolean()) {
@@ -1008,6 +1156,9 @@ public class StreamChatMod {
             }
             twitchClient.close();
         }
+        rateGovernors.clear();
+        messageCoalescer.clear();
+        moderationBatcher.clear();
         if (twitchSender != null) {
             TwitchClient twitchClient = this.twitchSender;
             this.twitchSender = null;
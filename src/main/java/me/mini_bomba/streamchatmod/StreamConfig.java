@@ -1,5 +1,6 @@
 package me.mini_bomba.streamchatmod;
 
+import me.mini_bomba.streamchatmod.utils.ChannelRateGovernor;
 import net.minecraftforge.common.config.Configuration;
 import net.minecraftforge.common.config.Property;
 import org.apache.http.HttpResponse;
@@ -23,6 +24,7 @@ public class StreamConfig {
     public final Property minecraftChatPrefix;
     public final Property allowMessageDeletion;
     public final Property showEmotesEverywhere;
+    public final Property chatMessagesPerTick;
     // tokens
     protected final Property twitchToken;
     // twitch
@@ -36,6 +38,14 @@ public class StreamConfig {
     public final Property twitchPrefixChannelSeparator;
     public final Property twitchPrefixLastChar;
     public final Property twitchUserMessageSeparator;
+    public final Property twitchCoalesceDuplicates;
+    public final Property twitchCoalesceWindow;
+    public final Property twitchHistorySize;
+    public final Property twitchChatLines;
+    public final Property twitchThrottlingEnabled;
+    public final Property twitchSamplingRate;
+    public final Property twitchAggregateRate;
+    public final Property twitchMentionsOnlyRate;
     // sounds
     public final Property playSoundOnMessage;
     public final Property playSoundOnFollow;
@@ -53,6 +63,7 @@ public class StreamConfig {
     public final Property showFFZGlobalEmotes;
     public final Property showFFZChannelEmotes;
     public final Property allowAnimatedEmotes;
+    public final Property emoteTextureBudget;
 
     private static final Logger LOGGER = LogManager.getLogger();
 
@@ -66,6 +77,7 @@ public class StreamConfig {
         minecraftChatPrefix = config.get("common", "minecraftChatPrefix", "!!");
         allowMessageDeletion = config.get("common", "allowMessageDeletion", true);
         showEmotesEverywhere = config.get("common", "showEmotesEverywhere", false);
+        chatMessagesPerTick = config.get("common", "chatMessagesPerTick", 10, "Maximum amount of queued messages added to the chat every tick");
 
         // tokens
         twitchToken = config.get("tokens", "twitch", "");
@@ -80,6 +92,14 @@ public class StreamConfig {
         twitchPrefixChannelSeparator = config.get("twitch", "prefix_channel_separator", "/");
         twitchPrefixLastChar = config.get("twitch", "prefix_last_char", "]");
         twitchUserMessageSeparator = config.get("twitch", "user-message_separator", "&7>>");
+        twitchCoalesceDuplicates = config.get("twitch", "coalesceDuplicates", true, "Fold repeated messages into the first message with a counter");
+        twitchCoalesceWindow = config.get("twitch", "coalesceWindowSeconds", 5, "Maximum time between repeats of a message to fold them");
+        twitchHistorySize = config.get("twitch", "historySize", 2000, "Amount of Twitch messages kept for /twitch history");
+        twitchChatLines = config.get("twitch", "chatLines", 50, "Maximum amount of Twitch messages kept in the chat, so they don't push out game messages (0 for no limit)");
+        twitchThrottlingEnabled = config.get("twitch", "throttlingEnabled", false, "Sample, aggregate or hide messages of channels whose chat rate exceeds the throttle rates below");
+        twitchSamplingRate = config.get("twitch", "throttleSamplingRate", 30.0d, "Messages per second in a channel above which only a sample of messages is shown (0 to disable)");
+        twitchAggregateRate = config.get("twitch", "throttleAggregateRate", 100.0d, "Messages per second in a channel above which messages are aggregated into summaries (0 to disable)");
+        twitchMentionsOnlyRate = config.get("twitch", "throttleMentionsOnlyRate", 300.0d, "Messages per second in a channel above which only mentions are shown (0 to disable)");
         // sounds
         playSoundOnMessage = config.get("sounds", "onMessage", true);
         playSoundOnFollow = config.get("sounds", "onFollow", true);
@@ -97,6 +117,7 @@ public class StreamConfig {
         showFFZGlobalEmotes = config.get("emotes", "ffz_globals", true);
         showFFZChannelEmotes = config.get("emotes", "ffz_channel", true);
         allowAnimatedEmotes = config.get("emotes", "animated", true);
+        emoteTextureBudget = config.get("emotes", "textureBudgetMB", 128, "Maximum memory used by emote textures, in megabytes. Emotes that were not shown recently are unloaded above this limit.");
         saveIfChanged();
     }
 
@@ -130,6 +151,10 @@ public class StreamConfig {
         return code == 200;
     }
 
+    public ChannelRateGovernor.Thresholds getRateThresholds() {
+        return new ChannelRateGovernor.Thresholds(twitchSamplingRate.getDouble(), twitchAggregateRate.getDouble(), twitchMentionsOnlyRate.getDouble());
+    }
+
     public String getFullTwitchPrefix() {
         return getTwitchPrefixWithoutLast() + getTwitchPrefixLastChar();
     }
@@ -6,101 +6,170 @@ import com.github.twitch4j.helix.domain.Emote;
 import me.mini_bomba.streamchatmod.utils.*;
 import net.minecraft.util.Tuple;
 import net.minecraftforge.fml.common.ProgressManager;
-import org.apache.commons.io.FileUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
-import java.net.URL;
+import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
+import java.util.function.UnaryOperator;
 import java.util.stream.Collectors;
 
 @SuppressWarnings({"ResultOfMethodCallIgnored", "ConstantConditions"})
 public class StreamEmotes {
     private final StreamChatMod mod;
     private static final Logger LOGGER = LogManager.getLogger();
-    private final Map<String, StreamEmote> namesToGlobalEmotes = new HashMap<>();
-    private final List<TwitchEmote> twitchGlobalEmotes = new ArrayList<>();
-    private final List<BTTVStreamEmote> bttvGlobalEmotes = new ArrayList<>();
-    private final List<FFZStreamEmote> ffzGlobalEmotes = new ArrayList<>();
-    private final Map<String, TwitchEmote> twitchEmotes = new HashMap<>();
-    private final Map<String, BTTVStreamEmote> bttvEmotes = new HashMap<>();
-    private final Map<String, FFZStreamEmote> ffzEmotes = new HashMap<>();
-    private final Map<String, TwitchGlobalBadge> twitchGlobalBadges = new HashMap<>();
-    private final Map<String, TwitchChannelBadge> twitchChannelBadges = new HashMap<>();
-    private final Map<String, Map<String, StreamEmote>> channelEmotes = new HashMap<>();
-    private final Map<String, TwitchGlobalBadge> globalBadges = new HashMap<>();
-    private final Map<String, Map<String, TwitchChannelBadge>> channelBadges = new HashMap<>();
+    // Wrapped emotes & badges by ID, reused between syncs (only used by sync methods)
+    private final Map<String, TwitchEmote> twitchEmotes = new ConcurrentHashMap<>();
+    private final Map<String, BTTVStreamEmote> bttvEmotes = new ConcurrentHashMap<>();
+    private final Map<String, FFZStreamEmote> ffzEmotes = new ConcurrentHashMap<>();
+    private final Map<String, TwitchGlobalBadge> twitchGlobalBadges = new ConcurrentHashMap<>();
+    private final Map<String, TwitchChannelBadge> twitchChannelBadges = new ConcurrentHashMap<>();
+    // Current emote & badge sets, replaced as a whole after every sync
+    private volatile Snapshot snapshot = Snapshot.EMPTY;
+    // Channels left since they were last synced, so a bulk sync that is still running doesn't bring their sets back
+    private final Set<String> leftChannels = ConcurrentHashMap.newKeySet();
+    // Emote & badge lists from the last sync, used to load emotes at startup without network calls
+    private final EmoteIndex index;
+    // Runs the stages of syncAll, which mostly wait on API requests & downloads
+    private final ExecutorService syncExecutor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "StreamChatMod Emote Sync");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     public StreamEmotes(StreamChatMod mod) {
         this.mod = mod;
+        EmoteIndex storedIndex = EmoteIndex.load();
+        this.index = storedIndex != null ? storedIndex : new EmoteIndex();
+        ScaledEmoteCache.openPack();
     }
 
+    /**
+     * Loads all emotes & badges from the emote index, without any network calls.<br>
+     * Steps the progress bar the same amount of times as syncing everything does.
+     *
+     * @param progress   the progress bar, may be null
+     * @param channelIds IDs of the joined channels
+     * @return false if the index is missing lists for any of the channels (nothing is loaded in that case)
+     */
+    public boolean loadFromIndex(ProgressManager.ProgressBar progress, List<String> channelIds) {
+        Map<String, List<ChatBadgeSet>> channelBadgeSets = new HashMap<>();
+        Map<String, List<BTTVEmote>> bttvChannels = new HashMap<>();
+        Map<String, List<FFZEmote>> ffzChannels = new HashMap<>();
+        List<ChatBadgeSet> globalBadgeSets;
+        List<Emote> twitchGlobals;
+        List<BTTVEmote> bttvGlobals;
+        List<FFZEmote> ffzGlobals;
+        synchronized (index) {
+            if (!index.isComplete(channelIds)) return false;
+            globalBadgeSets = index.twitchGlobalBadges.data;
+            twitchGlobals = index.twitchGlobalEmotes.data;
+            bttvGlobals = index.bttvGlobalEmotes.data;
+            ffzGlobals = index.ffzGlobalEmotes.data;
+            for (String channelId : channelIds) {
+                channelBadgeSets.put(channelId, index.twitchChannelBadges.get(channelId).data);
+                bttvChannels.put(channelId, index.bttvChannelEmotes.get(channelId).data);
+                ffzChannels.put(channelId, index.ffzChannelEmotes.get(channelId).data);
+            }
+        }
+        applyGlobalBadges(progress, globalBadgeSets);
+        applyAllChannelBadges(progress, channelIds, channelBadgeSets);
+        applyGlobalEmotes(progress, twitchGlobals, bttvGlobals, ffzGlobals);
+        applyAllChannelEmotes(progress, channelIds, bttvChannels, ffzChannels);
+        return true;
+    }
+
+    /**
+     * @return an unmodifiable view of the current Twitch global emotes
+     */
     public List<TwitchEmote> getTwitchGlobalEmotes() {
-        return new ArrayList<>(twitchGlobalEmotes);
+        return snapshot.twitchGlobalEmotes;
     }
 
+    /**
+     * @return an unmodifiable view of the current BTTV global emotes
+     */
     public List<BTTVStreamEmote> getBttvGlobalEmotes() {
-        return new ArrayList<>(bttvGlobalEmotes);
+        return snapshot.bttvGlobalEmotes;
     }
 
+    /**
+     * @return an unmodifiable view of the current FFZ global emotes
+     */
     public List<FFZStreamEmote> getFfzGlobalEmotes() {
-        return new ArrayList<>(ffzGlobalEmotes);
+        return snapshot.ffzGlobalEmotes;
     }
 
+    /**
+     * @return an unmodifiable view of the current emotes of the channel
+     */
     public Map<String, StreamEmote> getChannelEmotes(String channelId) {
-        if (!channelEmotes.containsKey(channelId)) return Collections.emptyMap();
-        return new HashMap<>(channelEmotes.get(channelId));
+        return snapshot.channelEmotes.getOrDefault(channelId, Collections.emptyMap());
     }
 
     public boolean isGlobalEmote(String name) {
-        return namesToGlobalEmotes.containsKey(name);
+        return snapshot.globalEmotes.containsKey(name);
     }
 
     public boolean isChannelEmote(String channelId, String name) {
-        if (channelId == null) return false;
-        return channelEmotes.containsKey(channelId) && channelEmotes.get(channelId).containsKey(name);
+        return getChannelEmote(channelId, name) != null;
     }
 
     public boolean isEmote(String channelId, String name) {
-        return isGlobalEmote(name) || isChannelEmote(channelId, name);
+        return getEmote(channelId, name) != null;
     }
 
     public StreamEmote getGlobalEmote(String name) {
-        if (isGlobalEmote(name)) return namesToGlobalEmotes.get(name);
-        return null;
+        return snapshot.globalEmotes.get(name);
     }
 
     public StreamEmote getChannelEmote(String channelId, String name) {
-        if (isChannelEmote(channelId, name)) return channelEmotes.get(channelId).get(name);
-        return null;
+        if (channelId == null) return null;
+        Map<String, StreamEmote> emotes = snapshot.channelEmotes.get(channelId);
+        return emotes == null ? null : emotes.get(name);
     }
 
     public StreamEmote getEmote(String channelId, String name) {
-        if (isChannelEmote(channelId, name)) return getChannelEmote(channelId, name);
-        if (isGlobalEmote(name)) return getGlobalEmote(name);
-        return null;
+        return getEmote(channelId, name, 0, name.length());
+    }
+
+    /**
+     * Looks up an emote by the name between <code>start</code> (inclusive) and <code>end</code> (exclusive) in <code>text</code>,
+     * without creating a substring. Channel emotes take priority over global emotes.
+     *
+     * @param channelId the ID of the channel (for channel emotes), may be null
+     * @return the emote, or null if there is no emote with that name
+     */
+    @Nullable
+    public StreamEmote getEmote(String channelId, CharSequence text, int start, int end) {
+        Snapshot current = snapshot;
+        EmoteTrie trie = channelId == null ? null : current.channelEmoteTries.get(channelId);
+        return (trie != null ? trie : current.globalEmoteTrie).get(text, start, end);
     }
 
     public TwitchGlobalBadge getGlobalBadge(String nameAndVersion) {
-        return globalBadges.getOrDefault(nameAndVersion, null);
+        return snapshot.globalBadges.get(nameAndVersion);
     }
 
     public TwitchGlobalBadge getGlobalBadge(String name, String version) {
-        return globalBadges.getOrDefault(name + ":" + version, null);
+        return getGlobalBadge(name + ":" + version);
     }
 
     public TwitchChannelBadge getChannelBadge(String channelId, String nameAndVersion) {
-        return channelBadges.containsKey(channelId) ? channelBadges.get(channelId).getOrDefault(nameAndVersion, null) : null;
+        Map<String, TwitchChannelBadge> badges = snapshot.channelBadges.get(channelId);
+        return badges == null ? null : badges.get(nameAndVersion);
     }
 
     public TwitchChannelBadge getChannelBadge(String channelId, String name, String version) {
-        return channelBadges.containsKey(channelId) ? channelBadges.get(channelId).getOrDefault(name + ":" + version, null) : null;
+        return getChannelBadge(channelId, name + ":" + version);
     }
 
     public TwitchBadge getBadge(String channelId, String nameAndVersion) {
@@ -112,25 +181,60 @@ public class StreamEmotes {
         return getBadge(channelId, name + ":" + version);
     }
 
+    /**
+     * Syncs all emotes & badges at once.<br>
+     * All API requests are sent right away, and every set is downloaded & indexed as soon as its lists arrive, so the
+     * downloads of one set overlap with the requests & downloads of the others.
+     *
+     * @param progress   the progress bar, stepped by the global sets only, may be null
+     * @param channelIds IDs of the joined channels
+     * @return the futures of the global sets & of the whole sync
+     */
+    public Sync syncAll(ProgressManager.ProgressBar progress, List<String> channelIds) {
+        CompletableFuture<List<ChatBadgeSet>> globalBadgeSets = CompletableFuture.supplyAsync(this::fetchGlobalBadges, syncExecutor);
+        CompletableFuture<Map<String, List<ChatBadgeSet>>> channelBadgeSets = CompletableFuture.supplyAsync(() -> fetchAllChannelBadges(channelIds), syncExecutor);
+        CompletableFuture<List<Emote>> twitchGlobals = CompletableFuture.supplyAsync(this::fetchTwitchGlobalEmotes, syncExecutor);
+        CompletableFuture<List<BTTVEmote>> bttvGlobals = CompletableFuture.supplyAsync(this::fetchBTTVGlobalEmotes, syncExecutor);
+        CompletableFuture<List<FFZEmote>> ffzGlobals = CompletableFuture.supplyAsync(this::fetchFFZGlobalEmotes, syncExecutor);
+        CompletableFuture<Map<String, List<BTTVEmote>>> bttvChannels = CompletableFuture.supplyAsync(() -> fetchAllBTTVChannelEmotes(channelIds), syncExecutor);
+        CompletableFuture<Map<String, List<FFZEmote>>> ffzChannels = CompletableFuture.supplyAsync(() -> fetchAllFFZChannelEmotes(channelIds), syncExecutor);
+
+        CompletableFuture<Void> globalBadges = globalBadgeSets.thenAcceptAsync(sets -> applyGlobalBadges(progress, sets), syncExecutor);
+        CompletableFuture<Void> channelBadges = channelBadgeSets.thenAcceptAsync(sets -> applyAllChannelBadges(null, channelIds, sets), syncExecutor);
+        CompletableFuture<Void> globalEmotes = CompletableFuture.allOf(twitchGlobals, bttvGlobals, ffzGlobals)
+                .thenRunAsync(() -> applyGlobalEmotes(progress, twitchGlobals.join(), bttvGlobals.join(), ffzGlobals.join()), syncExecutor);
+        CompletableFuture<Void> channelEmotes = bttvChannels.thenAcceptBothAsync(ffzChannels, (bttv, ffz) -> applyAllChannelEmotes(null, channelIds, bttv, ffz), syncExecutor);
+
+        CompletableFuture<Void> globals = CompletableFuture.allOf(globalBadges, globalEmotes);
+        CompletableFuture<Void> all = CompletableFuture.allOf(globals, channelBadges, channelEmotes).whenComplete((result, e) -> index.save());
+        return new Sync(globals, all);
+    }
+
     public void syncGlobalBadges(ProgressManager.ProgressBar progress) {
-        // Twitch
-        if (progress != null) progress.step("Twitch global badges");
-        File twitchBadgesDir = new File("streamchatmod/emotes/twitch_global_badges");
-        twitchBadgesDir.mkdirs();
-        List<String> cachedTwitchBadges = Arrays.stream(twitchBadgesDir.list())
-                .map(name -> name.endsWith("_3x.png") ? name.substring(0, name.length() - 7) : name)
-                .collect(Collectors.toList());
+        applyGlobalBadges(progress, fetchGlobalBadges());
+        index.save();
+    }
+
+    private List<ChatBadgeSet> fetchGlobalBadges() {
         List<ChatBadgeSet> twitchBadgeSets = mod.queryGlobalTwitchBadges();
+        synchronized (index) {
+            // An empty result is what a failed request returns, keep using the indexed badges then
+            if (twitchBadgeSets.isEmpty()) return dataOrEmpty(index.twitchGlobalBadges);
+            index.twitchGlobalBadges = EmoteIndex.Entry.of(twitchBadgeSets);
+        }
+        return twitchBadgeSets;
+    }
+
+    private void applyGlobalBadges(ProgressManager.ProgressBar progress, List<ChatBadgeSet> twitchBadgeSets) {
+        // Twitch
+        step(progress, "Twitch global badges");
         List<TwitchBadgeGlobal> twitchBadges = twitchBadgeSets.stream().flatMap(set -> set.getVersions().stream().map(badge -> new TwitchBadgeGlobal(set, badge))).collect(Collectors.toList());
         List<TwitchBadgeGlobal> twitchBadgesToDownload = twitchBadges.stream()
-                .filter(badge -> !cachedTwitchBadges.contains(badge.id))
+                .filter(badge -> !EmoteFileCache.isCached(StreamEmote.Type.TWITCH_GLOBAL_BADGE, badge.id))
                 .collect(Collectors.toList());
         threadedDownload(progress != null, twitchBadgesToDownload.stream().map((Function<TwitchBadgeGlobal, Function<ProgressManager.ProgressBar, Callable<Void>>>) badge -> downloadProgress -> () -> {
             try {
-                FileUtils.copyURLToFile(
-                        new URL(badge.badge.getLargeImageUrl()),
-                        new File("streamchatmod/emotes/twitch_global_badges/" + badge.id + "_3x.png")
-                );
+                download(badge.badge.getLargeImageUrl(), StreamEmote.Type.TWITCH_GLOBAL_BADGE, badge.id, "png");
             } catch (Exception e) {
                 LOGGER.warn("Failed to download Twitch global badge " + badge.set.getSetId() + ":" + badge.badge.getId());
                 e.printStackTrace();
@@ -142,7 +246,7 @@ public class StreamEmotes {
         }).collect(Collectors.toList()));
 
         // Indexing
-        if (progress != null) progress.step("Indexing global badges");
+        step(progress, "Indexing global badges");
         java.util.stream.Stream<TwitchGlobalBadge> stream1 = twitchBadges.stream().map(badge -> {
             if (twitchGlobalBadges.containsKey(badge.id)) return twitchGlobalBadges.get(badge.id);
             try {
@@ -154,39 +258,55 @@ public class StreamEmotes {
                 return null;
             }
         });
-        globalBadges.clear();
+        Map<String, TwitchGlobalBadge> globalBadges = new HashMap<>();
         stream1.forEach(badge -> {
             if (badge == null) return;
             if (!globalBadges.containsKey(badge.name))
                 globalBadges.put(badge.name, badge);
             else LOGGER.warn("Duplicate badge name: " + badge.name);
         });
+        publish(current -> current.withGlobalBadges(globalBadges));
     }
 
     public void syncAllChannelBadges(ProgressManager.ProgressBar progress, List<String> channelIds) {
+        applyAllChannelBadges(progress, channelIds, fetchAllChannelBadges(channelIds));
+        index.save();
+    }
+
+    private Map<String, List<ChatBadgeSet>> fetchAllChannelBadges(List<String> channelIds) {
+        Map<String, List<ChatBadgeSet>> twitchBadgeSets = new HashMap<>();
+        for (String channelId : channelIds)
+            twitchBadgeSets.put(channelId, indexChannelBadges(channelId, mod.queryChannelTwitchBadges(channelId)));
+        return twitchBadgeSets;
+    }
+
+    /**
+     * Stores fetched channel badges in the index. An empty result is what a failed request returns, so the previously
+     * indexed badges are kept & returned in that case.
+     */
+    private List<ChatBadgeSet> indexChannelBadges(String channelId, List<ChatBadgeSet> sets) {
+        synchronized (index) {
+            if (!sets.isEmpty()) {
+                index.twitchChannelBadges.put(channelId, EmoteIndex.Entry.of(sets));
+                return sets;
+            }
+            return dataOrEmpty(index.twitchChannelBadges.get(channelId));
+        }
+    }
+
+    private void applyAllChannelBadges(ProgressManager.ProgressBar progress, List<String> channelIds, Map<String, List<ChatBadgeSet>> twitchBadgeSets) {
         // Twitch
-        if (progress != null) progress.step("Twitch channel badges");
-        File twitchBadgesDir = new File("streamchatmod/emotes/twitch_channel_badges");
-        twitchBadgesDir.mkdirs();
-        List<String> cachedTwitchBadges = Arrays.stream(twitchBadgesDir.list())
-                .map(name -> name.endsWith("_3x.png") ? name.substring(0, name.length() - 7) : name)
-                .collect(Collectors.toList());
-        Map<String, List<ChatBadgeSet>> twitchBadgeSets = channelIds.stream()
-                .map(c -> new Tuple<>(c, mod.queryChannelTwitchBadges(c)))
-                .collect(Collectors.toMap(Tuple::getFirst, Tuple::getSecond));
+        step(progress, "Twitch channel badges");
         List<TwitchBadgeChannel> twitchBadges = twitchBadgeSets.keySet().stream()
                 .flatMap(k -> twitchBadgeSets.get(k).stream().map(s -> new Tuple<>(k, s)))
                 .flatMap(set -> set.getSecond().getVersions().stream().map(badge -> new TwitchBadgeChannel(set.getSecond(), badge, set.getFirst())))
                 .collect(Collectors.toList());
         List<TwitchBadgeChannel> twitchBadgesToDownload = twitchBadges.stream()
-                .filter(badge -> !cachedTwitchBadges.contains(badge.id))
+                .filter(badge -> !EmoteFileCache.isCached(StreamEmote.Type.TWITCH_CHANNEL_BADGE, badge.id))
                 .collect(Collectors.toList());
         threadedDownload(progress != null, twitchBadgesToDownload.stream().map((Function<TwitchBadgeChannel, Function<ProgressManager.ProgressBar, Callable<Void>>>) badge -> downloadProgress -> () -> {
             try {
-                FileUtils.copyURLToFile(
-                        new URL(badge.badge.getLargeImageUrl()),
-                        new File("streamchatmod/emotes/twitch_channel_badges/" + badge.id + "_3x.png")
-                );
+                download(badge.badge.getLargeImageUrl(), StreamEmote.Type.TWITCH_CHANNEL_BADGE, badge.id, "png");
             } catch (Exception e) {
                 LOGGER.warn("Failed to download Twitch channel badge " + badge.set.getSetId() + ":" + badge.badge.getId());
                 e.printStackTrace();
@@ -198,7 +318,7 @@ public class StreamEmotes {
         }).collect(Collectors.toList()));
 
         // Indexing
-        if (progress != null) progress.step("Indexing channel badges");
+        step(progress, "Indexing channel badges");
         java.util.stream.Stream<TwitchChannelBadge> stream1 = twitchBadges.stream().map(badge -> {
             if (twitchChannelBadges.containsKey(badge.id)) return twitchChannelBadges.get(badge.id);
             try {
@@ -210,7 +330,7 @@ public class StreamEmotes {
                 return null;
             }
         });
-        channelBadges.clear();
+        Map<String, Map<String, TwitchChannelBadge>> channelBadges = new HashMap<>();
         for (String channelId : channelIds) channelBadges.put(channelId, new HashMap<>());
         stream1.forEach(badge -> {
             if (badge == null) return;
@@ -219,28 +339,36 @@ public class StreamEmotes {
                 badgeMap.put(badge.name, badge);
             else LOGGER.warn("Duplicate badge name: " + badge.name + " for channel: " + badge.channelName);
         });
+        publish(current -> {
+            // Only the synced channels are replaced, channels joined or left in the meantime are left alone
+            for (String channelId : channelIds)
+                if (!leftChannels.contains(channelId)) current = current.withChannelBadges(channelId, channelBadges.get(channelId));
+            return current;
+        });
     }
 
     public void syncChannelBadges(String channelId) {
+        leftChannels.remove(channelId);
+        List<ChatBadgeSet> twitchBadgeSets = indexChannelBadges(channelId, mod.queryChannelTwitchBadges(channelId));
+        applyChannelBadges(channelId, twitchBadgeSets);
+        index.save();
+    }
+
+    /**
+     * Updates the badges of a single channel. Only badges that were never loaded before are looked up on disk & downloaded,
+     * the maps of other channels are left untouched.
+     */
+    private void applyChannelBadges(String channelId, List<ChatBadgeSet> twitchBadgeSets) {
         // Twitch
-        File twitchBadgesDir = new File("streamchatmod/emotes/twitch_channel_badges");
-        twitchBadgesDir.mkdirs();
-        List<String> cachedTwitchBadges = Arrays.stream(twitchBadgesDir.list())
-                .map(name -> name.endsWith("_3x.png") ? name.substring(0, name.length() - 7) : name)
-                .collect(Collectors.toList());
-        List<ChatBadgeSet> twitchBadgeSets = mod.queryChannelTwitchBadges(channelId);
         List<TwitchBadgeChannel> twitchBadges = twitchBadgeSets.stream()
                 .flatMap(set -> set.getVersions().stream().map(badge -> new TwitchBadgeChannel(set, badge, channelId)))
                 .collect(Collectors.toList());
         List<TwitchBadgeChannel> twitchBadgesToDownload = twitchBadges.stream()
-                .filter(badge -> !cachedTwitchBadges.contains(badge.id))
+                .filter(badge -> !EmoteFileCache.isCached(StreamEmote.Type.TWITCH_CHANNEL_BADGE, badge.id))
                 .collect(Collectors.toList());
         threadedDownload(twitchBadgesToDownload.stream().map((Function<TwitchBadgeChannel, Callable<Void>>) badge -> () -> {
             try {
-                FileUtils.copyURLToFile(
-                        new URL(badge.badge.getLargeImageUrl()),
-                        new File("streamchatmod/emotes/twitch_channel_badges/" + badge.id + "_3x.png")
-                );
+                download(badge.badge.getLargeImageUrl(), StreamEmote.Type.TWITCH_CHANNEL_BADGE, badge.id, "png");
             } catch (Exception e) {
                 LOGGER.warn("Failed to download Twitch channel badge " + badge.set.getSetId() + ":" + badge.badge.getId());
                 e.printStackTrace();
@@ -261,33 +389,61 @@ public class StreamEmotes {
             }
         });
         Map<String, TwitchChannelBadge> badgeMap = new HashMap<>();
-        channelBadges.put(channelId, badgeMap);
         stream1.forEach(badge -> {
             if (badge == null) return;
             if (!badgeMap.containsKey(badge.name))
                 badgeMap.put(badge.name, badge);
             else LOGGER.warn("Duplicate badge name: " + badge.name + " for channel: " + badge.channelName);
         });
+        Map<String, TwitchChannelBadge> previousBadges = snapshot.channelBadges.getOrDefault(channelId, Collections.emptyMap());
+        publish(current -> current.withChannelBadges(channelId, badgeMap));
+        logChanges("badges", channelId, previousBadges, badgeMap, twitchBadgesToDownload.size());
     }
 
     public void syncGlobalEmotes(ProgressManager.ProgressBar progress) {
-        // Twitch
-        if (progress != null) progress.step("Twitch global emotes");
-        File twitchGlobalsDir = new File("streamchatmod/emotes/twitch_global");
-        twitchGlobalsDir.mkdirs();
-        List<String> cachedTwitchGlobals = Arrays.stream(twitchGlobalsDir.list())
-                .map(name -> (name.endsWith("_3x.png") || name.endsWith("_3x.gif") ? name.substring(0, name.length() - 7) : name))
-                .collect(Collectors.toList());
+        applyGlobalEmotes(progress, fetchTwitchGlobalEmotes(), fetchBTTVGlobalEmotes(), fetchFFZGlobalEmotes());
+        index.save();
+    }
+
+    private List<Emote> fetchTwitchGlobalEmotes() {
         List<Emote> twitchGlobals = mod.queryGlobalTwitchEmotes();
+        synchronized (index) {
+            // An empty result is what a failed request returns, keep using the indexed emotes then
+            if (twitchGlobals.isEmpty()) return dataOrEmpty(index.twitchGlobalEmotes);
+            index.twitchGlobalEmotes = EmoteIndex.Entry.of(twitchGlobals);
+        }
+        return twitchGlobals;
+    }
+
+    private List<BTTVEmote> fetchBTTVGlobalEmotes() {
+        EmoteIndex.Entry<List<BTTVEmote>> bttvGlobals = BTTVApi.getGlobalEmotes(index.bttvGlobalEmotes);
+        synchronized (index) {
+            // Keep using the indexed list if the request failed
+            if (bttvGlobals != null) index.bttvGlobalEmotes = bttvGlobals;
+            else bttvGlobals = index.bttvGlobalEmotes;
+        }
+        return dataOrEmpty(bttvGlobals);
+    }
+
+    private List<FFZEmote> fetchFFZGlobalEmotes() {
+        EmoteIndex.Entry<List<FFZEmote>> ffzGlobals = FFZApi.getGlobalEmotes(index.ffzGlobalEmotes);
+        synchronized (index) {
+            // Keep using the indexed list if the request failed
+            if (ffzGlobals != null) index.ffzGlobalEmotes = ffzGlobals;
+            else ffzGlobals = index.ffzGlobalEmotes;
+        }
+        return dataOrEmpty(ffzGlobals);
+    }
+
+    private void applyGlobalEmotes(ProgressManager.ProgressBar progress, List<Emote> twitchGlobals, List<BTTVEmote> bttvGlobals, List<FFZEmote> ffzGlobals) {
+        // Twitch
+        step(progress, "Twitch global emotes");
         List<Emote> twitchEmotesToDownload = twitchGlobals.stream()
-                .filter(emote -> !cachedTwitchGlobals.contains(emote.getId()))
+                .filter(emote -> !EmoteFileCache.isCached(StreamEmote.Type.TWITCH_GLOBAL, emote.getId()))
                 .collect(Collectors.toList());
         threadedDownload(progress != null, twitchEmotesToDownload.stream().map((Function<Emote, Function<ProgressManager.ProgressBar, Callable<Void>>>) emote -> downloadProgress -> () -> {
             try {
-                FileUtils.copyURLToFile(
-                        new URL(emote.getImages().getLargeImageUrl()),
-                        new File("streamchatmod/emotes/twitch_global/" + emote.getId() + "_3x.png")
-                );
+                download(emote.getImages().getLargeImageUrl(), StreamEmote.Type.TWITCH_GLOBAL, emote.getId(), "png");
             } catch (Exception e) {
                 LOGGER.warn("Failed to download Twitch global emote " + emote.getName());
                 e.printStackTrace();
@@ -299,22 +455,13 @@ public class StreamEmotes {
         }).collect(Collectors.toList()));
 
         // BTTV
-        if (progress != null) progress.step("BetterTTV global emotes");
-        File bttvGlobalsDir = new File("streamchatmod/emotes/bttv_global");
-        bttvGlobalsDir.mkdirs();
-        List<String> cachedBTTVGlobals = Arrays.stream(bttvGlobalsDir.list())
-                .map(name -> (name.endsWith("_2x.png") || name.endsWith("_2x.gif") ? name.substring(0, name.length() - 7) : name))
-                .collect(Collectors.toList());
-        List<BTTVEmote> bttvGlobals = BTTVApi.getGlobalEmotes();
+        step(progress, "BetterTTV global emotes");
         List<BTTVEmote> bttvEmotesToDownload = bttvGlobals.stream()
-                .filter(emote -> !cachedBTTVGlobals.contains(emote.id))
+                .filter(emote -> !EmoteFileCache.isCached(StreamEmote.Type.BTTV_GLOBAL, emote.id))
                 .collect(Collectors.toList());
         threadedDownload(progress != null, bttvEmotesToDownload.stream().map((Function<BTTVEmote, Function<ProgressManager.ProgressBar, Callable<Void>>>) emote -> downloadProgress -> () -> {
             try {
-                FileUtils.copyURLToFile(
-                        new URL(emote.getMediumEmoteURL()),
-                        new File("streamchatmod/emotes/bttv_global/" + emote.id + "_2x." + emote.imageType.name().toLowerCase())
-                );
+                download(emote.getMediumEmoteURL(), StreamEmote.Type.BTTV_GLOBAL, emote.id, emote.imageType.name().toLowerCase());
             } catch (Exception e) {
                 LOGGER.warn("Failed to download BTTV global emote " + emote.name);
                 e.printStackTrace();
@@ -326,22 +473,13 @@ public class StreamEmotes {
         }).collect(Collectors.toList()));
 
         // FFZ
-        if (progress != null) progress.step("FrankerFaceZ global emotes");
-        File ffzGlobalsDir = new File("streamchatmod/emotes/ffz_global");
-        ffzGlobalsDir.mkdirs();
-        List<String> cachedFFZGlobals = Arrays.stream(ffzGlobalsDir.list())
-                .map(name -> (name.endsWith("_2x.png") || name.endsWith("_2x.gif") ? name.substring(0, name.length() - 7) : name))
-                .collect(Collectors.toList());
-        List<FFZEmote> ffzGlobals = FFZApi.getGlobalEmotes();
+        step(progress, "FrankerFaceZ global emotes");
         List<FFZEmote> ffzEmotesToDownload = ffzGlobals.stream()
-                .filter(emote -> !cachedFFZGlobals.contains(String.valueOf(emote.id)))
+                .filter(emote -> !EmoteFileCache.isCached(StreamEmote.Type.FFZ_GLOBAL, String.valueOf(emote.id)))
                 .collect(Collectors.toList());
         threadedDownload(progress != null, ffzEmotesToDownload.stream().map((Function<FFZEmote, Function<ProgressManager.ProgressBar, Callable<Void>>>) emote -> downloadProgress -> () -> {
             try {
-                FileUtils.copyURLToFile(
-                        new URL(emote.getMediumEmoteURL()),
-                        new File("streamchatmod/emotes/ffz_global/" + emote.id + "_2x.png")
-                );
+                download(emote.getMediumEmoteURL(), StreamEmote.Type.FFZ_GLOBAL, String.valueOf(emote.id), "png");
             } catch (Exception e) {
                 LOGGER.warn("Failed to download FFZ global emote " + emote.name);
                 e.printStackTrace();
@@ -353,7 +491,7 @@ public class StreamEmotes {
         }).collect(Collectors.toList()));
 
         // Indexing
-        if (progress != null) progress.step("Indexing global emotes");
+        step(progress, "Indexing global emotes");
         java.util.stream.Stream<StreamEmote> stream1 = twitchGlobals.stream().map(emote -> {
             if (twitchEmotes.containsKey(emote.getId())) return twitchEmotes.get(emote.getId());
             try {
@@ -388,10 +526,10 @@ public class StreamEmotes {
                 return null;
             }
         });
-        twitchGlobalEmotes.clear();
-        bttvGlobalEmotes.clear();
-        ffzGlobalEmotes.clear();
-        namesToGlobalEmotes.clear();
+        List<TwitchEmote> twitchGlobalEmotes = new ArrayList<>();
+        List<BTTVStreamEmote> bttvGlobalEmotes = new ArrayList<>();
+        List<FFZStreamEmote> ffzGlobalEmotes = new ArrayList<>();
+        Map<String, StreamEmote> namesToGlobalEmotes = new HashMap<>();
         java.util.stream.Stream.of(stream1, stream2, stream3).flatMap(s -> s).forEach(emote -> {
             if (emote == null) return;
             if (emote instanceof TwitchEmote) twitchGlobalEmotes.add((TwitchEmote) emote);
@@ -400,28 +538,56 @@ public class StreamEmotes {
             if (!namesToGlobalEmotes.containsKey(emote.name)) namesToGlobalEmotes.put(emote.name, emote);
             else LOGGER.warn("Duplicate emote name: " + emote.name);
         });
+        publish(current -> current.withGlobalEmotes(namesToGlobalEmotes, twitchGlobalEmotes, bttvGlobalEmotes, ffzGlobalEmotes));
     }
 
     public void syncAllChannelEmotes(ProgressManager.ProgressBar progress, List<String> channelIds) {
-        // BTTV
-        if (progress != null) progress.step("BetterTTV channel emotes");
-        File bttvChannelDir = new File("streamchatmod/emotes/bttv_channel");
-        bttvChannelDir.mkdirs();
-        List<String> cachedBTTVChannelEmotes = Arrays.stream(bttvChannelDir.list())
-                .map(name -> (name.endsWith("_2x.png") || name.endsWith("_2x.gif") ? name.substring(0, name.length() - 7) : name))
-                .collect(Collectors.toList());
+        applyAllChannelEmotes(progress, channelIds, fetchAllBTTVChannelEmotes(channelIds), fetchAllFFZChannelEmotes(channelIds));
+        index.save();
+    }
+
+    private Map<String, List<BTTVEmote>> fetchAllBTTVChannelEmotes(List<String> channelIds) {
         Map<String, List<BTTVEmote>> bttvChannels = new HashMap<>();
-        for (String channelId : channelIds) bttvChannels.put(channelId, BTTVApi.getChannelEmotes(channelId));
+        for (String channelId : channelIds) {
+            EmoteIndex.Entry<List<BTTVEmote>> entry = BTTVApi.getChannelEmotes(channelId, index.bttvChannelEmotes.get(channelId));
+            synchronized (index) {
+                if (entry != null) index.bttvChannelEmotes.put(channelId, entry);
+                else entry = index.bttvChannelEmotes.get(channelId);
+            }
+            bttvChannels.put(channelId, dataOrEmpty(entry));
+        }
+        return bttvChannels;
+    }
+
+    private Map<String, List<FFZEmote>> fetchAllFFZChannelEmotes(List<String> channelIds) {
+        // FFZ emotes of all channels are fetched in one request, which does not support conditional requests
+        Map<String, List<FFZEmote>> fetched = FFZApi.getMultiChannelEmotes(channelIds);
+        Map<String, List<FFZEmote>> ffzChannels = new HashMap<>();
+        synchronized (index) {
+            for (String channelId : channelIds) {
+                // Keep the indexed emotes if the request failed
+                if (fetched == null) {
+                    ffzChannels.put(channelId, dataOrEmpty(index.ffzChannelEmotes.get(channelId)));
+                    continue;
+                }
+                List<FFZEmote> emotes = fetched.getOrDefault(channelId, Collections.emptyList());
+                index.ffzChannelEmotes.put(channelId, EmoteIndex.Entry.of(emotes));
+                ffzChannels.put(channelId, emotes);
+            }
+        }
+        return ffzChannels;
+    }
+
+    private void applyAllChannelEmotes(ProgressManager.ProgressBar progress, List<String> channelIds, Map<String, List<BTTVEmote>> bttvChannels, Map<String, List<FFZEmote>> ffzChannels) {
+        // BTTV
+        step(progress, "BetterTTV channel emotes");
         List<BTTVEmote> bttvChannelEmotes = bttvChannels.values().stream().flatMap(List::stream).distinct().collect(Collectors.toList());
         List<BTTVEmote> bttvChannelEmotesToDownload = bttvChannelEmotes.stream()
-                .filter(emote -> !cachedBTTVChannelEmotes.contains(emote.id))
+                .filter(emote -> !EmoteFileCache.isCached(StreamEmote.Type.BTTV_CHANNEL, emote.id))
                 .collect(Collectors.toList());
         threadedDownload(progress != null, bttvChannelEmotesToDownload.stream().map((Function<BTTVEmote, Function<ProgressManager.ProgressBar, Callable<Void>>>) emote -> downloadProgress -> () -> {
             try {
-                FileUtils.copyURLToFile(
-                        new URL(emote.getMediumEmoteURL()),
-                        new File("streamchatmod/emotes/bttv_channel/" + emote.id + "_2x." + emote.imageType.name().toLowerCase())
-                );
+                download(emote.getMediumEmoteURL(), StreamEmote.Type.BTTV_CHANNEL, emote.id, emote.imageType.name().toLowerCase());
             } catch (Exception e) {
                 LOGGER.warn("Failed to download BTTV channel emote " + emote.name + " (id " + emote.id + ")");
                 e.printStackTrace();
@@ -433,23 +599,14 @@ public class StreamEmotes {
         }).collect(Collectors.toList()));
 
         // FFZ
-        if (progress != null) progress.step("FrankerFaceZ channel emotes");
-        File ffzChannelDir = new File("streamchatmod/emotes/ffz_channel");
-        ffzChannelDir.mkdirs();
-        List<String> cachedFFZChannelEmotes = Arrays.stream(ffzChannelDir.list())
-                .map(name -> (name.endsWith("_2x.png") || name.endsWith("_2x.gif") ? name.substring(0, name.length() - 7) : name))
-                .collect(Collectors.toList());
-        Map<String, List<FFZEmote>> ffzChannels = FFZApi.getMultiChannelEmotes(channelIds);
+        step(progress, "FrankerFaceZ channel emotes");
         List<FFZEmote> ffzChannelEmotes = ffzChannels.values().stream().flatMap(List::stream).distinct().collect(Collectors.toList());
         List<FFZEmote> ffzChannelEmotesToDownload = ffzChannelEmotes.stream()
-                .filter(emote -> !cachedFFZChannelEmotes.contains(String.valueOf(emote.id)))
+                .filter(emote -> !EmoteFileCache.isCached(StreamEmote.Type.FFZ_CHANNEL, String.valueOf(emote.id)))
                 .collect(Collectors.toList());
         threadedDownload(progress != null, ffzChannelEmotesToDownload.stream().map((Function<FFZEmote, Function<ProgressManager.ProgressBar, Callable<Void>>>) emote -> downloadProgress -> () -> {
             try {
-                FileUtils.copyURLToFile(
-                        new URL(emote.getMediumEmoteURL()),
-                        new File("streamchatmod/emotes/ffz_channel/" + emote.id + "_2x.png")
-                );
+                download(emote.getMediumEmoteURL(), StreamEmote.Type.FFZ_CHANNEL, String.valueOf(emote.id), "png");
             } catch (Exception e) {
                 LOGGER.warn("Failed to download FFZ channel emote " + emote.name + " (id " + emote.id + ")");
                 e.printStackTrace();
@@ -461,7 +618,7 @@ public class StreamEmotes {
         }).collect(Collectors.toList()));
 
         // Indexing
-        if (progress != null) progress.step("Indexing channel emotes");
+        step(progress, "Indexing channel emotes");
         for (BTTVEmote channelEmote : bttvChannelEmotes) {
             if (channelEmote == null || bttvEmotes.containsKey(channelEmote.id)) continue;
             try {
@@ -480,7 +637,7 @@ public class StreamEmotes {
                 LOGGER.warn("Failed to wrap channel FFZ emote " + channelEmote.name + " in FFZStreamEmote class", e);
             }
         }
-        channelEmotes.clear();
+        Map<String, Map<String, StreamEmote>> channelEmotes = new HashMap<>();
         for (String channelId : channelIds) {
             Map<String, StreamEmote> wrappedChannelEmotes = new HashMap<>();
             for (BTTVEmote emote : bttvChannels.get(channelId))
@@ -496,25 +653,41 @@ public class StreamEmotes {
 //                else wrappedChannelEmotes.put(emote.name, ffzEmotes.get(String.valueOf(emote.id)));
             channelEmotes.put(channelId, wrappedChannelEmotes);
         }
+        publish(current -> {
+            // Only the synced channels are replaced, channels joined or left in the meantime are left alone
+            for (String channelId : channelIds)
+                if (!leftChannels.contains(channelId)) current = current.withChannelEmotes(channelId, channelEmotes.get(channelId));
+            return current;
+        });
     }
 
     public void syncChannelEmotes(String channelId) {
+        leftChannels.remove(channelId);
+        EmoteIndex.Entry<List<BTTVEmote>> bttvEntry = BTTVApi.getChannelEmotes(channelId, index.bttvChannelEmotes.get(channelId));
+        EmoteIndex.Entry<List<FFZEmote>> ffzEntry = FFZApi.getChannelEmotes(channelId, index.ffzChannelEmotes.get(channelId));
+        synchronized (index) {
+            // Keep using the indexed lists if a request failed
+            if (bttvEntry != null) index.bttvChannelEmotes.put(channelId, bttvEntry);
+            else bttvEntry = index.bttvChannelEmotes.get(channelId);
+            if (ffzEntry != null) index.ffzChannelEmotes.put(channelId, ffzEntry);
+            else ffzEntry = index.ffzChannelEmotes.get(channelId);
+        }
+        applyChannelEmotes(channelId, dataOrEmpty(bttvEntry), dataOrEmpty(ffzEntry));
+        index.save();
+    }
+
+    /**
+     * Updates the emotes of a single channel. Only emotes that were never loaded before are looked up on disk & downloaded,
+     * the maps of other channels are left untouched.
+     */
+    private void applyChannelEmotes(String channelId, List<BTTVEmote> bttvChannelEmotes, List<FFZEmote> ffzChannelEmotes) {
         // BTTV
-        File bttvChannelDir = new File("streamchatmod/emotes/bttv_channel");
-        bttvChannelDir.mkdirs();
-        List<String> cachedBTTVChannelEmotes = Arrays.stream(bttvChannelDir.list())
-                .map(name -> (name.endsWith("_2x.png") || name.endsWith("_2x.gif") ? name.substring(0, name.length() - 7) : name))
-                .collect(Collectors.toList());
-        List<BTTVEmote> bttvChannelEmotes = BTTVApi.getChannelEmotes(channelId);
         List<BTTVEmote> bttvChannelEmotesToDownload = bttvChannelEmotes.stream()
-                .filter(emote -> !cachedBTTVChannelEmotes.contains(emote.id))
+                .filter(emote -> !EmoteFileCache.isCached(StreamEmote.Type.BTTV_CHANNEL, emote.id))
                 .collect(Collectors.toList());
         threadedDownload(bttvChannelEmotesToDownload.stream().map((Function<BTTVEmote, Callable<Void>>) emote -> () -> {
             try {
-                FileUtils.copyURLToFile(
-                        new URL(emote.getMediumEmoteURL()),
-                        new File("streamchatmod/emotes/bttv_channel/" + emote.id + "_2x." + emote.imageType.name().toLowerCase())
-                );
+                download(emote.getMediumEmoteURL(), StreamEmote.Type.BTTV_CHANNEL, emote.id, emote.imageType.name().toLowerCase());
             } catch (Exception e) {
                 LOGGER.warn("Failed to download BTTV channel emote " + emote.name + " (id " + emote.id + ")");
                 e.printStackTrace();
@@ -523,21 +696,12 @@ public class StreamEmotes {
         }).collect(Collectors.toList()));
 
         // FFZ
-        File ffzChannelDir = new File("streamchatmod/emotes/ffz_channel");
-        ffzChannelDir.mkdirs();
-        List<String> cachedFFZChannelEmotes = Arrays.stream(ffzChannelDir.list())
-                .map(name -> (name.endsWith("_2x.png") || name.endsWith("_2x.gif") ? name.substring(0, name.length() - 7) : name))
-                .collect(Collectors.toList());
-        List<FFZEmote> ffzChannelEmotes = FFZApi.getChannelEmotes(channelId);
         List<FFZEmote> ffzChannelEmotesToDownload = ffzChannelEmotes.stream()
-                .filter(emote -> !cachedFFZChannelEmotes.contains(String.valueOf(emote.id)))
+                .filter(emote -> !EmoteFileCache.isCached(StreamEmote.Type.FFZ_CHANNEL, String.valueOf(emote.id)))
                 .collect(Collectors.toList());
         threadedDownload(ffzChannelEmotesToDownload.stream().map((Function<FFZEmote, Callable<Void>>) emote -> () -> {
             try {
-                FileUtils.copyURLToFile(
-                        new URL(emote.getMediumEmoteURL()),
-                        new File("streamchatmod/emotes/ffz_channel/" + emote.id + "_2x.png")
-                );
+                download(emote.getMediumEmoteURL(), StreamEmote.Type.FFZ_CHANNEL, String.valueOf(emote.id), "png");
             } catch (Exception e) {
                 LOGGER.warn("Failed to download FFZ channel emote " + emote.name + " (id " + emote.id + ")", e);
             }
@@ -575,7 +739,38 @@ public class StreamEmotes {
             else if (!ffzEmotes.containsKey(String.valueOf(emote.id)))
                 LOGGER.warn("Missing FFZ emote with id " + emote.id);
             else wrappedChannelEmotes.put(emote.name, ffzEmotes.get(String.valueOf(emote.id)));
-        channelEmotes.put(channelId, wrappedChannelEmotes);
+        Map<String, StreamEmote> previousEmotes = snapshot.channelEmotes.getOrDefault(channelId, Collections.emptyMap());
+        publish(current -> current.withChannelEmotes(channelId, wrappedChannelEmotes));
+        logChanges("emotes", channelId, previousEmotes, wrappedChannelEmotes, bttvChannelEmotesToDownload.size() + ffzChannelEmotesToDownload.size());
+    }
+
+    /**
+     * Removes the emotes & badges of a channel that was left.<br>
+     * The emotes stay registered, since chat lines might still show them, but they are no longer matched in messages
+     * & their cached copies are dropped from the emote pack on the next compaction.
+     */
+    public void removeChannel(String channelId) {
+        leftChannels.add(channelId);
+        publish(current -> current.withoutChannel(channelId));
+    }
+
+    private static void logChanges(String kind, String channelId, Map<String, ? extends StreamEmote> previous, Map<String, ? extends StreamEmote> current, int downloaded) {
+        Set<StreamEmote> previousEmotes = new HashSet<>(previous.values());
+        Set<StreamEmote> currentEmotes = new HashSet<>(current.values());
+        int added = 0;
+        int removed = 0;
+        for (StreamEmote emote : currentEmotes) if (!previousEmotes.contains(emote)) added++;
+        for (StreamEmote emote : previousEmotes) if (!currentEmotes.contains(emote)) removed++;
+        LOGGER.info("Synced channel " + kind + " of " + channelId + ": " + added + " added, " + removed + " removed, " + downloaded + " downloaded");
+    }
+
+    /**
+     * Steps the progress bar, if there is one. Stages of {@link #syncAll} step the same bar from different threads.
+     */
+    private static void step(ProgressManager.ProgressBar progress, String message) {
+        if (progress != null) synchronized (progress) {
+            progress.step(message);
+        }
     }
 
     private static void threadedDownload(boolean showProgress, List<Function<ProgressManager.ProgressBar, Callable<Void>>> downloads) {
@@ -587,18 +782,66 @@ public class StreamEmotes {
         }
     }
 
-    private static void threadedDownload(List<Callable<Void>> downloads) {
-        if (downloads.size() == 0) return;
-        ExecutorService downloadExecutor = Executors.newFixedThreadPool(Math.min(Runtime.getRuntime().availableProcessors(), downloads.size()));
-        try {
-            downloadExecutor.invokeAll(downloads);
-        } catch (InterruptedException ignored) {
+    /**
+     * Merges the pre-scaled copies of all current emotes & badges into a new emote pack, dropping ones that are no longer
+     * part of any set.<br>
+     * Should be called on the async thread after a sync.
+     */
+    public void compactCache() {
+        Snapshot current = snapshot;
+        List<String> paths = new ArrayList<>();
+        current.twitchGlobalEmotes.forEach(emote -> paths.add(emote.path));
+        current.bttvGlobalEmotes.forEach(emote -> paths.add(emote.path));
+        current.ffzGlobalEmotes.forEach(emote -> paths.add(emote.path));
+        current.channelEmotes.values().forEach(emotes -> emotes.values().forEach(emote -> paths.add(emote.path)));
+        current.globalBadges.values().forEach(badge -> paths.add(badge.path));
+        current.channelBadges.values().forEach(badges -> badges.values().forEach(badge -> paths.add(badge.path)));
+        ScaledEmoteCache.compact(paths);
+    }
+
+    /**
+     * Downloads an emote image, checks that it's complete & writes its pre-scaled copy
+     *
+     * @param extension file extension of the image, GIFs are treated as animated
+     */
+    private static void download(String url, StreamEmote.Type type, String id, String extension) throws IOException {
+        String path = EmoteFileCache.getPath(type, id, extension);
+        EmoteDownloader.download(url, new File(path));
+        if (!EmoteFileCache.verify(new File(path))) {
+            EmoteFileCache.invalidate(type, id, path);
+            throw new IOException("Downloaded image is incomplete");
         }
-        downloadExecutor.shutdown();
-        try {
-            //noinspection ResultOfMethodCallIgnored
-            downloadExecutor.awaitTermination(5, TimeUnit.SECONDS);
-        } catch (InterruptedException ignored) {
+        EmoteFileCache.markCached(type, id);
+        ScaledEmoteCache.process(path, extension.equals("gif"));
+    }
+
+    private static <T> List<T> dataOrEmpty(@Nullable EmoteIndex.Entry<List<T>> entry) {
+        return entry != null ? entry.data : Collections.emptyList();
+    }
+
+    /**
+     * Replaces the current snapshot. Updates are serialized, so concurrent syncs don't overwrite each other's results.
+     */
+    private synchronized void publish(UnaryOperator<Snapshot> update) {
+        snapshot = update.apply(snapshot);
+    }
+
+    private static void threadedDownload(List<Callable<Void>> downloads) {
+        EmoteDownloader.runAll(downloads);
+    }
+
+    /**
+     * Futures of a running {@link #syncAll} call
+     */
+    public static class Sync {
+        // global badges & emotes, which can show up in any channel
+        public final CompletableFuture<Void> globals;
+        // all emotes & badges, completes after the index is saved
+        public final CompletableFuture<Void> all;
+
+        private Sync(CompletableFuture<Void> globals, CompletableFuture<Void> all) {
+            this.globals = globals;
+            this.all = all;
         }
     }
 
@@ -626,4 +869,84 @@ public class StreamEmotes {
             this.channelId = channelId;
         }
     }
+
+    /**
+     * An immutable set of all emotes & badges, along with their lookup tries.<br>
+     * Readers get a consistent view from a single volatile read, syncs build a new snapshot & swap it in.
+     */
+    private static final class Snapshot {
+        private static final Snapshot EMPTY = new Snapshot(Collections.emptyMap(), Collections.emptyList(), Collections.emptyList(), Collections.emptyList(),
+                Collections.emptyMap(), Collections.emptyMap(), Collections.emptyMap(), EmoteTrie.EMPTY, Collections.emptyMap());
+
+        private final Map<String, StreamEmote> globalEmotes;
+        private final List<TwitchEmote> twitchGlobalEmotes;
+        private final List<BTTVStreamEmote> bttvGlobalEmotes;
+        private final List<FFZStreamEmote> ffzGlobalEmotes;
+        private final Map<String, Map<String, StreamEmote>> channelEmotes;
+        private final Map<String, TwitchGlobalBadge> globalBadges;
+        private final Map<String, Map<String, TwitchChannelBadge>> channelBadges;
+        // global emotes only & global + channel emotes for each channel
+        private final EmoteTrie globalEmoteTrie;
+        private final Map<String, EmoteTrie> channelEmoteTries;
+
+        private Snapshot(Map<String, StreamEmote> globalEmotes, List<TwitchEmote> twitchGlobalEmotes, List<BTTVStreamEmote> bttvGlobalEmotes, List<FFZStreamEmote> ffzGlobalEmotes,
+                         Map<String, Map<String, StreamEmote>> channelEmotes, Map<String, TwitchGlobalBadge> globalBadges, Map<String, Map<String, TwitchChannelBadge>> channelBadges,
+                         EmoteTrie globalEmoteTrie, Map<String, EmoteTrie> channelEmoteTries) {
+            this.globalEmotes = globalEmotes;
+            this.twitchGlobalEmotes = twitchGlobalEmotes;
+            this.bttvGlobalEmotes = bttvGlobalEmotes;
+            this.ffzGlobalEmotes = ffzGlobalEmotes;
+            this.channelEmotes = channelEmotes;
+            this.globalBadges = globalBadges;
+            this.channelBadges = channelBadges;
+            this.globalEmoteTrie = globalEmoteTrie;
+            this.channelEmoteTries = channelEmoteTries;
+        }
+
+        private Snapshot withGlobalEmotes(Map<String, StreamEmote> globalEmotes, List<TwitchEmote> twitchGlobalEmotes, List<BTTVStreamEmote> bttvGlobalEmotes, List<FFZStreamEmote> ffzGlobalEmotes) {
+            Map<String, StreamEmote> newGlobalEmotes = Collections.unmodifiableMap(new HashMap<>(globalEmotes));
+            return new Snapshot(newGlobalEmotes, Collections.unmodifiableList(new ArrayList<>(twitchGlobalEmotes)),
+                    Collections.unmodifiableList(new ArrayList<>(bttvGlobalEmotes)), Collections.unmodifiableList(new ArrayList<>(ffzGlobalEmotes)),
+                    channelEmotes, globalBadges, channelBadges, EmoteTrie.of(newGlobalEmotes), buildChannelTries(newGlobalEmotes, channelEmotes));
+        }
+
+        private Snapshot withChannelEmotes(String channelId, Map<String, StreamEmote> emotes) {
+            Map<String, Map<String, StreamEmote>> newChannelEmotes = new HashMap<>(channelEmotes);
+            Map<String, StreamEmote> newEmotes = Collections.unmodifiableMap(new HashMap<>(emotes));
+            newChannelEmotes.put(channelId, newEmotes);
+            Map<String, EmoteTrie> newTries = new HashMap<>(channelEmoteTries);
+            newTries.put(channelId, EmoteTrie.of(globalEmotes, newEmotes));
+            return new Snapshot(globalEmotes, twitchGlobalEmotes, bttvGlobalEmotes, ffzGlobalEmotes, Collections.unmodifiableMap(newChannelEmotes),
+                    globalBadges, channelBadges, globalEmoteTrie, Collections.unmodifiableMap(newTries));
+        }
+
+        private Snapshot withoutChannel(String channelId) {
+            Map<String, Map<String, StreamEmote>> newChannelEmotes = new HashMap<>(channelEmotes);
+            newChannelEmotes.remove(channelId);
+            Map<String, EmoteTrie> newTries = new HashMap<>(channelEmoteTries);
+            newTries.remove(channelId);
+            Map<String, Map<String, TwitchChannelBadge>> newChannelBadges = new HashMap<>(channelBadges);
+            newChannelBadges.remove(channelId);
+            return new Snapshot(globalEmotes, twitchGlobalEmotes, bttvGlobalEmotes, ffzGlobalEmotes, Collections.unmodifiableMap(newChannelEmotes),
+                    globalBadges, Collections.unmodifiableMap(newChannelBadges), globalEmoteTrie, Collections.unmodifiableMap(newTries));
+        }
+
+        private Snapshot withGlobalBadges(Map<String, TwitchGlobalBadge> globalBadges) {
+            return new Snapshot(globalEmotes, twitchGlobalEmotes, bttvGlobalEmotes, ffzGlobalEmotes, channelEmotes,
+                    Collections.unmodifiableMap(new HashMap<>(globalBadges)), channelBadges, globalEmoteTrie, channelEmoteTries);
+        }
+
+        private Snapshot withChannelBadges(String channelId, Map<String, TwitchChannelBadge> badges) {
+            Map<String, Map<String, TwitchChannelBadge>> newChannelBadges = new HashMap<>(channelBadges);
+            newChannelBadges.put(channelId, Collections.unmodifiableMap(new HashMap<>(badges)));
+            return new Snapshot(globalEmotes, twitchGlobalEmotes, bttvGlobalEmotes, ffzGlobalEmotes, channelEmotes,
+                    globalBadges, Collections.unmodifiableMap(newChannelBadges), globalEmoteTrie, channelEmoteTries);
+        }
+
+        private static Map<String, EmoteTrie> buildChannelTries(Map<String, StreamEmote> globalEmotes, Map<String, Map<String, StreamEmote>> channelEmotes) {
+            Map<String, EmoteTrie> tries = new HashMap<>();
+            channelEmotes.forEach((channelId, emotes) -> tries.put(channelId, EmoteTrie.of(globalEmotes, emotes)));
+            return Collections.unmodifiableMap(tries);
+        }
+    }
 }
@@ -6,6 +6,8 @@ import me.mini_bomba.streamchatmod.commands.IDrawsChatOutline;
 import me.mini_bomba.streamchatmod.events.LocalMessageEvent;
 import me.mini_bomba.streamchatmod.runnables.TwitchMessageHandler;
 import me.mini_bomba.streamchatmod.utils.ChatComponentStreamEmote;
+import me.mini_bomba.streamchatmod.utils.EmoteAnimator;
+import me.mini_bomba.streamchatmod.utils.TwitchChatHistory;
 import net.minecraft.client.gui.GuiChat;
 import net.minecraft.client.gui.GuiTextField;
 import net.minecraft.util.ChatComponentText;
@@ -20,7 +22,7 @@ import net.minecraftforge.fml.common.network.FMLNetworkEvent;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import java.lang.reflect.Field;
+import java.lang.invoke.MethodHandle;
 import java.util.Arrays;
 import java.util.List;
 
@@ -28,13 +30,13 @@ public class StreamEvents {
 
     private final StreamChatMod mod;
     private final Logger LOGGER = LogManager.getLogger();
-    private Field GuiChat_inputField = null;
+    // (GuiChat) -> GuiTextField, read every frame while the chat is open
+    private MethodHandle GuiChat_inputField = null;
 
     public StreamEvents(StreamChatMod mod) {
         this.mod = mod;
         try {
-            GuiChat_inputField = GuiChat.class.getDeclaredField(TransformerField.GuiChat_inputField.getReflectorName());
-            GuiChat_inputField.setAccessible(true);
+            GuiChat_inputField = TransformerField.GuiChat_inputField.createGetter(GuiChat.class);
         } catch (Exception e) {
             LOGGER.error("Failed to reflect GuiChat.inputField");
             e.printStackTrace();
@@ -48,6 +50,18 @@ public class StreamEvents {
             mod.sentStatus = true;
         }
         if (mod.loginMessageTimer >= 0) mod.loginMessageTimer--;
+        if (event.phase == TickEvent.Phase.END) {
+            mod.tickRateGovernors();
+            mod.tickMessageCoalescer();
+            mod.tickModerationBatcher();
+            TwitchChatHistory.setCapacity(mod.config.twitchHistorySize.getInt());
+            StreamUtils.drainMessageQueue(Math.max(1, mod.config.chatMessagesPerTick.getInt()), Math.max(0, mod.config.twitchChatLines.getInt()));
+        }
+    }
+
+    @SubscribeEvent
+    public void onRenderTick(TickEvent.RenderTickEvent event) {
+        if (event.phase == TickEvent.Phase.START) EmoteAnimator.tick(System.currentTimeMillis());
     }
 
     @SubscribeEvent
@@ -61,8 +75,8 @@ public class StreamEvents {
         GuiChat gui = (GuiChat) event.gui;
         String text = "";
         try {
-            if (GuiChat_inputField != null) text = ((GuiTextField) GuiChat_inputField.get(gui)).getText();
-        } catch (Exception ignored) {}
+            if (GuiChat_inputField != null) text = ((GuiTextField) GuiChat_inputField.invokeExact(gui)).getText();
+        } catch (Throwable ignored) {}
         String modePrefix = mod.config.minecraftChatPrefix.getString();
         if (!text.startsWith("/") && (modePrefix.length() == 0 || !text.startsWith(modePrefix)) && mod.config.twitchMessageRedirectEnabled.getBoolean()) {
             if (mod.twitch == null || mod.twitchSender == null || !mod.config.twitchEnabled.getBoolean())
@@ -6,6 +6,10 @@ import com.sun.net.httpserver.HttpHandler;
 import me.mini_bomba.streamchatmod.asm.TransformerClass;
 import me.mini_bomba.streamchatmod.asm.TransformerField;
 import me.mini_bomba.streamchatmod.utils.ChatComponentTwitchMessage;
+import me.mini_bomba.streamchatmod.utils.ChatLineIndex;
+import me.mini_bomba.streamchatmod.utils.ChatRefreshScheduler;
+import me.mini_bomba.streamchatmod.utils.MessageRingBuffer;
+import me.mini_bomba.streamchatmod.utils.TwitchChatHistory;
 import net.minecraft.client.Minecraft;
 import net.minecraft.client.entity.EntityPlayerSP;
 import net.minecraft.client.gui.*;
@@ -22,10 +26,13 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.lang.reflect.Field;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.net.URL;
 import java.util.List;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -36,20 +43,26 @@ public class StreamUtils {
     public static final int RED = new Color(255, 0, 0).getRGB();
     public static final int BACKGROUND = new Color(0, 0, 0, 127).getRGB();
 
-    // Reflection stuff for editing "private" & "final" fields on stuff
+    // Messages waiting to be added to the chat, drained once per client tick
+    private static final MessageRingBuffer<IChatComponent> messageQueue = new MessageRingBuffer<>(512);
+    private static final AtomicInteger skippedMessages = new AtomicInteger(0);
+    // Float bits of the loudest message sound requested since the last drain, 0 if none
+    private static final AtomicInteger pendingMessageSoundVolume = new AtomicInteger(0);
+
+    // Accessors for "private" & "final" fields on stuff, resolved once into MethodHandles
     // Vanilla fields
-    private static final Field textComponentTextField = getVanillaAccessibleField(ChatComponentText.class, TransformerField.ChatComponentText_text);
-    private static final Field guiNewChatChatLines = getVanillaAccessibleField(GuiNewChat.class, TransformerField.GuiNewChat_chatLines);
-    // Vanilla Enhancements' fields
-    private static final Field ve_BetterChatChatLines = getExternalAccessibleField(TransformerClass.VE_BetterChat, TransformerField.GuiNewChat_chatLines_deobf);
-    private static final Field ve_BetterChatAllTab = getExternalAccessibleField(TransformerClass.VE_BetterChatWithTabs, TransformerField.VE_BetterChatWithTabs_allTab);
-    private static final Field ve_ChatTabChatLines = getExternalAccessibleField(TransformerClass.VE_ChatTab, TransformerField.GuiNewChat_chatLines_deobf);
-
-    private static Field getVanillaAccessibleField(Class<?> c, TransformerField f) {
+    private static final MethodHandle textComponentTextSetter = getVanillaAccessor(ChatComponentText.class, TransformerField.ChatComponentText_text, true);
+    private static final MethodHandle guiNewChatDrawnChatLines = getVanillaAccessor(GuiNewChat.class, TransformerField.GuiNewChat_drawnChatLines, false);
+    // (GuiNewChat) -> List<ChatLine> getter of the chatLines of the current chat GUI class
+    @Nullable
+    private static Class<?> chatLinesClass = null;
+    @Nullable
+    private static MethodHandle chatLinesGetter = null;
+
+    @Nullable
+    private static MethodHandle getVanillaAccessor(Class<?> c, TransformerField f, boolean setter) {
         try {
-            Field field = c.getDeclaredField(f.getReflectorName());
-            field.setAccessible(true);
-            return field;
+            return setter ? f.createSetter(c) : f.createGetter(c);
         } catch (ReflectiveOperationException e) {
             LOGGER.error("Failed to get DeclaredField '" + f.getReflectorName() + "' of " + c.getSimpleName() + " & set it accessible");
             e.printStackTrace();
@@ -57,12 +70,13 @@ public class StreamUtils {
         }
     }
 
-    private static Field getExternalAccessibleField(TransformerClass c, TransformerField f) {
+    /**
+     * Creates a getter for a field of another mod's class, if the mod is loaded
+     */
+    @Nullable
+    private static MethodHandle getExternalGetter(TransformerClass c, TransformerField f) {
         try {
-            Class<?> c_reflection = Class.forName(c.getTransformerName());
-            Field field = c_reflection.getDeclaredField(f.getReflectorName());
-            field.setAccessible(true);
-            return field;
+            return f.createGetter(Class.forName(c.getTransformerName()));
         } catch (ClassNotFoundException ignored) {
         } catch (ReflectiveOperationException e) {
             LOGGER.warn("Failed to get DeclaredField '" + f.getReflectorName() + "' from " + c.getTransformerName() + " & mark it accessible!");
@@ -71,6 +85,26 @@ public class StreamUtils {
         return null;
     }
 
+    /**
+     * Resolves the chatLines getter of a chat GUI class, adapted to (GuiNewChat) -> List
+     */
+    @Nullable
+    private static MethodHandle resolveChatLinesGetter(Class<?> chatClass) {
+        MethodHandle getter;
+        if (chatClass.getName().equals(TransformerClass.VE_BetterChat.getTransformerName())) {
+            getter = getExternalGetter(TransformerClass.VE_BetterChat, TransformerField.GuiNewChat_chatLines_deobf);
+        } else if (chatClass.getName().equals(TransformerClass.VE_BetterChatWithTabs.getTransformerName())) {
+            MethodHandle allTab = getExternalGetter(TransformerClass.VE_BetterChatWithTabs, TransformerField.VE_BetterChatWithTabs_allTab);
+            MethodHandle tabChatLines = getExternalGetter(TransformerClass.VE_ChatTab, TransformerField.GuiNewChat_chatLines_deobf);
+            if (allTab == null || tabChatLines == null) return null;
+            // chat -> chat.allTab.chatLines
+            getter = MethodHandles.filterReturnValue(allTab, tabChatLines);
+        } else {
+            getter = getVanillaAccessor(GuiNewChat.class, TransformerField.GuiNewChat_chatLines, false);
+        }
+        return getter == null ? null : getter.asType(MethodType.methodType(List.class, GuiNewChat.class));
+    }
+
     public static void addMessage(ICommandSender player, String message) {
         player.addChatMessage(new ChatComponentText(message));
     }
@@ -199,89 +233,175 @@ public class StreamUtils {
         Minecraft.getMinecraft().addScheduledTask(() -> addMessages(components));
     }
 
+    /**
+     * Queues a stream chat message to be added to the chat during the next client tick(s). May be called from any thread.<br>
+     * Only a limited amount of messages is added per tick; if the queue is full, the message is dropped and counted in
+     * the "messages skipped" line. Use {@link #queueAddMessage(IChatComponent)} for messages that must not be dropped.
+     */
+    public static void queueAddChatMessage(IChatComponent message) {
+        if (!messageQueue.offer(message)) skippedMessages.incrementAndGet();
+    }
+
+    /**
+     * Requests a message notification sound to be played during the next client tick.<br>
+     * Multiple requests within one tick result in a single sound.
+     */
+    public static void queueMessageSound(float volume) {
+        pendingMessageSoundVolume.accumulateAndGet(Float.floatToIntBits(volume), (a, b) -> Float.intBitsToFloat(a) >= Float.intBitsToFloat(b) ? a : b);
+    }
+
+    /**
+     * Adds up to <code>budget</code> queued messages to the chat & plays queued message sounds.<br>
+     * <b>Must be called from the client thread</b>, once per tick.
+     *
+     * @param budget          maximum amount of messages to add
+     * @param twitchLineLimit maximum amount of Twitch messages kept in the chat, 0 for no limit
+     */
+    public static void drainMessageQueue(int budget, int twitchLineLimit) {
+        List<ChatLine> chatLines = getChatLines();
+        List<ChatLine> drawnChatLines = getDrawnChatLines();
+        ChatRefreshScheduler.validate(drawnChatLines);
+        for (int i = 0; i < budget; i++) {
+            IChatComponent message = messageQueue.poll();
+            if (message == null) break;
+            ChatLine previousNewest = ChatRefreshScheduler.getNewestDrawnLine(drawnChatLines);
+            addMessage(message);
+            if (message instanceof ChatComponentTwitchMessage) {
+                TwitchChatHistory.add((ChatComponentTwitchMessage) message);
+                if (chatLines != null) ChatLineIndex.track(chatLines, (ChatComponentTwitchMessage) message);
+                if (drawnChatLines != null) ChatRefreshScheduler.track(drawnChatLines, message, previousNewest);
+            }
+        }
+        if (chatLines != null) {
+            // Without the wrapped lines every trim refreshes the whole chat, so other chat implementations are trimmed in bigger steps
+            ChatLineIndex.trim(chatLines, twitchLineLimit, drawnChatLines != null ? 0 : twitchLineLimit / 4);
+            // Messages deleted & edited during this tick are updated in one go
+            ChatLineIndex.flush(chatLines);
+        }
+        ChatRefreshScheduler.apply(chatLines, drawnChatLines);
+        int skipped = skippedMessages.getAndSet(0);
+        if (skipped > 0)
+            addMessage("" + EnumChatFormatting.GRAY + EnumChatFormatting.ITALIC + skipped + " message" + (skipped == 1 ? "" : "s") + " skipped (chat is too busy)");
+        float volume = Float.intBitsToFloat(pendingMessageSoundVolume.getAndSet(0));
+        if (volume > 0) playSound("note.pling", volume, 1.25f);
+    }
+
+    public static int getQueuedMessageCount() {
+        return messageQueue.size();
+    }
+
+    /**
+     * Requests the chat to be refreshed at the end of the tick. May be called from any thread.<br>
+     * All requests made during a tick result in a single refresh.
+     */
     public static void queueRefreshChat() {
-        Minecraft.getMinecraft().addScheduledTask(() -> Minecraft.getMinecraft().ingameGUI.getChatGUI().refreshChat());
+        ChatRefreshScheduler.requestRefresh();
+    }
+
+    /**
+     * Requests a message that was edited in place to be wrapped again at the end of the tick. May be called from any thread.<br>
+     * Only the lines of the message are wrapped again if possible, otherwise the chat is refreshed.
+     *
+     * @param message the top-level component of the message
+     */
+    public static void queueRefreshMessage(IChatComponent message) {
+        ChatRefreshScheduler.requestRelayout(message);
     }
 
     @SuppressWarnings("UnusedReturnValue")
     public static boolean editTextComponent(ChatComponentText component, String newText) {
-        if (textComponentTextField == null) {
+        if (textComponentTextSetter == null) {
             LOGGER.warn("Failed to edit text component - static field lookup & set-accessible has failed");
             return false;
         }
         try {
-            textComponentTextField.set(component, newText);
+            textComponentTextSetter.invokeExact(component, newText);
             return true;
-        } catch (ReflectiveOperationException e) {
+        } catch (Throwable e) {
             LOGGER.error("Failed to edit text component (exception below)");
             e.printStackTrace();
             return false;
         }
     }
 
+    /**
+     * Returns the chat lines of the current chat GUI, the getter is resolved once per chat GUI class.<br>
+     * <b>Must be called from the client thread</b>
+     */
     @SuppressWarnings("unchecked")
     @Nullable
     public static List<ChatLine> getChatLines() {
+        GuiNewChat chat = Minecraft.getMinecraft().ingameGUI.getChatGUI();
+        if (chat.getClass() != chatLinesClass) {
+            chatLinesClass = chat.getClass();
+            chatLinesGetter = resolveChatLinesGetter(chatLinesClass);
+        }
+        if (chatLinesGetter == null) return null;
         try {
-            GuiNewChat chat = Minecraft.getMinecraft().ingameGUI.getChatGUI();
-            switch (chat.getClass().getName()) {
-                case "com.orangemarshall.enhancements.modules.chat.BetterChat":
-                    if (ve_BetterChatChatLines == null) return null;
-                    return (List<ChatLine>) ve_BetterChatChatLines.get(chat);
-                case "com.orangemarshall.enhancements.modules.chat.tab.BetterChatWithTabs":
-                    if (ve_ChatTabChatLines == null || ve_BetterChatAllTab == null) return null;
-                    return (List<ChatLine>) ve_ChatTabChatLines.get(ve_BetterChatAllTab.get(chat));
-                default:
-                    if (guiNewChatChatLines == null) return null;
-                    return (List<ChatLine>) guiNewChatChatLines.get(chat);
-            }
-        } catch (ReflectiveOperationException e) {
+            return (List<ChatLine>) chatLinesGetter.invokeExact(chat);
+        } catch (Throwable e) {
             LOGGER.error("Failed to get chatLines from GuiNewChat");
             e.printStackTrace();
             return null;
         }
     }
 
+    /**
+     * Returns the wrapped lines of the chat, if the chat is the vanilla one. Other chat implementations wrap their lines differently.
+     */
+    @SuppressWarnings("unchecked")
+    @Nullable
+    public static List<ChatLine> getDrawnChatLines() {
+        GuiNewChat chat = Minecraft.getMinecraft().ingameGUI.getChatGUI();
+        if (guiNewChatDrawnChatLines == null || chat.getClass() != GuiNewChat.class) return null;
+        try {
+            return (List<ChatLine>) guiNewChatDrawnChatLines.invokeExact(chat);
+        } catch (Throwable e) {
+            LOGGER.error("Failed to get drawnChatLines from GuiNewChat");
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Marks the message for removal from the chat, the chat is updated at the end of the tick.<br>
+     * <b>Must be called from the client thread</b>
+     */
     public static void deleteTwitchMessage(String messageId) {
+        TwitchChatHistory.deleteMessage(messageId);
         List<ChatLine> chatLines = getChatLines();
         if (chatLines == null) return;
-        chatLines.removeIf(line -> {
-            IChatComponent component = line.getChatComponent();
-            return component instanceof ChatComponentTwitchMessage && messageId.equals(((ChatComponentTwitchMessage) component).messageId);
-        });
-        Minecraft.getMinecraft().ingameGUI.getChatGUI().refreshChat();
+        ChatLineIndex.removeMessage(chatLines, messageId);
     }
 
     public static void queueDeleteTwitchMessage(String messageId) {
         Minecraft.getMinecraft().addScheduledTask(() -> deleteTwitchMessage(messageId));
     }
 
+    /**
+     * Marks all messages of the channel for removal from the chat, the chat is updated at the end of the tick.<br>
+     * <b>Must be called from the client thread</b>
+     */
     public static void clearTwitchChat(String channelId) {
+        TwitchChatHistory.deleteChannel(channelId);
         List<ChatLine> chatLines = getChatLines();
         if (chatLines == null) return;
-        chatLines.removeIf(line -> {
-            IChatComponent component = line.getChatComponent();
-            return component instanceof ChatComponentTwitchMessage && channelId.equals(((ChatComponentTwitchMessage) component).channelId);
-        });
-        Minecraft.getMinecraft().ingameGUI.getChatGUI().refreshChat();
+        ChatLineIndex.removeChannel(chatLines, channelId);
     }
 
     public static void queueClearTwitchChat(String channelId) {
         Minecraft.getMinecraft().addScheduledTask(() -> clearTwitchChat(channelId));
     }
 
-    public static void clearTwitchUserMessages(String channelId, String userId) {
+    /**
+     * Marks all messages of the users in the channel for removal from the chat, the chat is updated at the end of the tick.<br>
+     * <b>Must be called from the client thread</b>
+     */
+    public static void clearTwitchUserMessages(String channelId, Collection<String> userIds) {
+        TwitchChatHistory.deleteUsers(channelId, userIds);
         List<ChatLine> chatLines = getChatLines();
         if (chatLines == null) return;
-        chatLines.removeIf(line -> {
-            IChatComponent component = line.getChatComponent();
-            return component instanceof ChatComponentTwitchMessage && channelId.equals(((ChatComponentTwitchMessage) component).channelId) && userId.equals(((ChatComponentTwitchMessage) component).userId);
-        });
-        Minecraft.getMinecraft().ingameGUI.getChatGUI().refreshChat();
-    }
-
-    public static void queueClearTwitchUserMessages(String channelId, String userId) {
-        Minecraft.getMinecraft().addScheduledTask(() -> clearTwitchUserMessages(channelId, userId));
+        ChatLineIndex.removeUsers(chatLines, channelId, userIds);
     }
 
     public static <T> List<T> singletonModifiableList(T obj) {
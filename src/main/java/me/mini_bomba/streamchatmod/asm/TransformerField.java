@@ -3,12 +3,17 @@ package me.mini_bomba.streamchatmod.asm;
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.tree.FieldInsnNode;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Field;
+
 public enum TransformerField {
     // GuiScreen
     GuiScreen_mc("mc", "field_146297_k", "j", "Lave;", "Lnet/minecraft/client/Minecraft;"),
 
     // GuiNewChat
     GuiNewChat_chatLines("chatLines", "field_146252_h", "h", "Ljava/util/List;"),
+    GuiNewChat_drawnChatLines("drawnChatLines", "field_146253_i", "i", "Ljava/util/List;"),
 
     // GuiChat
     GuiChat_inputField("inputField", "field_146415_a", "a", "Lavw;", "Lnet/minecraft/client/gui/GuiTextField;"),
@@ -22,6 +27,11 @@ public enum TransformerField {
     // FontRenderer
     FontRenderer_posX("posX", "field_78295_j", "i", "F"),
     FontRenderer_posY("posY", "field_78296_k", "j", "F"),
+    // The blue & green fields hold the green & blue components of the text color
+    FontRenderer_red("red", "field_78291_n", "m", "F"),
+    FontRenderer_blue("blue", "field_78292_o", "n", "F"),
+    FontRenderer_green("green", "field_78306_p", "o", "F"),
+    FontRenderer_alpha("alpha", "field_78305_q", "p", "F"),
 
     // Other mod compatibility
     GuiNewChat_chatLines_deobf("chatLines", "Ljava/util/List;"),
@@ -75,4 +85,28 @@ public enum TransformerField {
     public boolean matches(FieldInsnNode fieldInsnNode) {
         return this.transformerName.equals(fieldInsnNode.name) && this.type.equals(fieldInsnNode.desc);
     }
+
+    /**
+     * Creates a MethodHandle reading this field, so it is looked up & made accessible only once
+     *
+     * @param owner the class declaring this field
+     */
+    public MethodHandle createGetter(Class<?> owner) throws ReflectiveOperationException {
+        return MethodHandles.lookup().unreflectGetter(getAccessibleField(owner));
+    }
+
+    /**
+     * Creates a MethodHandle writing this field, so it is looked up & made accessible only once. Works on final fields.
+     *
+     * @param owner the class declaring this field
+     */
+    public MethodHandle createSetter(Class<?> owner) throws ReflectiveOperationException {
+        return MethodHandles.lookup().unreflectSetter(getAccessibleField(owner));
+    }
+
+    private Field getAccessibleField(Class<?> owner) throws NoSuchFieldException {
+        Field field = owner.getDeclaredField(reflectorName);
+        field.setAccessible(true);
+        return field;
+    }
 }
@@ -22,8 +22,9 @@ public enum TransformerMethod {
 
     // StreamChatMod ASM Hooks
     GuiScreenHook_redirectMessage("redirectMessage", "(Ljava/lang/String;)Ljava/lang/String;"),
-    FontRendererHook_renderEmote("renderEmote", "(CCFF)F"),
+    FontRendererHook_renderEmote("renderEmote", "(CCFFFFFF)F"),
     FontRendererHook_getEmoteWidth("getEmoteWidth", "(CC)I"),
+    FontRendererHook_flushEmotes("flushEmotes", "(FFFF)V"),
 
     // Vanilla Enhancements
     VE_GuiChatExtended_keyTyped("func_73869_a", "(CI)V"),
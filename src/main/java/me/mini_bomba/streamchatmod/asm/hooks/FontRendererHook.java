@@ -1,35 +1,98 @@
 package me.mini_bomba.streamchatmod.asm.hooks;
 
 import me.mini_bomba.streamchatmod.utils.StreamEmote;
-import net.minecraft.client.Minecraft;
+import net.minecraft.client.renderer.GlStateManager;
+import net.minecraft.client.renderer.Tessellator;
+import net.minecraft.client.renderer.WorldRenderer;
+import net.minecraft.client.renderer.vertex.DefaultVertexFormats;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.lwjgl.opengl.GL11;
 
+/**
+ * Hooks called from the transformed FontRenderer.<br>
+ * Emotes are not drawn right away: their quads are collected while the string is processed & drawn by {@link #flushEmotes(float, float, float, float)}
+ * at the end of renderStringAtPos(), with one draw call per texture.
+ */
 @SuppressWarnings("unused")
 public class FontRendererHook {
     private static final Logger LOGGER = LogManager.getLogger();
+    // x0, y0, x1, y1, minU, minV, maxU, maxV, red, green, blue, alpha
+    private static final int QUAD_FLOATS = 12;
+    // Flush early if renderStringAtPos() somehow didn't, so the batch can't grow forever
+    private static final int MAX_BATCHED_QUADS = 256;
+    private static final int[] quadTextures = new int[MAX_BATCHED_QUADS];
+    private static final float[] quadData = new float[MAX_BATCHED_QUADS * QUAD_FLOATS];
+    private static int quadCount = 0;
     private static boolean allowAnimated = true;
 
-    public static float renderEmote(char c1, char c2, float posX, float posY) {
+    /**
+     * Collects an emote to be drawn by {@link #flushEmotes(float, float, float, float)}<br>
+     * The color is the text color of the FontRenderer, which the emote is tinted with.
+     *
+     * @return the width of the emote
+     */
+    public static float renderEmote(char c1, char c2, float posX, float posY, float red, float green, float blue, float alpha) {
         int emoteId = ((c1 - 0xDBC0) << 10) + c2 & 1023;
         StreamEmote emote = StreamEmote.getEmote(emoteId);
         if (emote == null) return 0.0F;
-        Minecraft.getMinecraft().renderEngine.bindTexture(emote.getCurrentFrame(allowAnimated));
         float renderedWidth = emote.width / (emote.height / 9.0F);
-        GL11.glBegin(GL11.GL_TRIANGLE_STRIP);
-        GL11.glTexCoord2f(0, 0);
-        GL11.glVertex3f(posX - 0.5F, posY - 0.5F, 0.0F);
-        GL11.glTexCoord2f(0, 1);
-        GL11.glVertex3f(posX - 0.5F, posY + 8.49F, 0.0F);
-        GL11.glTexCoord2f(1, 0);
-        GL11.glVertex3f(posX + renderedWidth - 0.5F, posY - 0.5F, 0.0F);
-        GL11.glTexCoord2f(1, 1);
-        GL11.glVertex3f(posX + renderedWidth - 0.5F, posY + 8.49F, 0.0F);
-        GL11.glEnd();
+        StreamEmote.Frame frame = emote.getCurrentFrame(allowAnimated);
+        // Still loading, leave the space empty so the text does not move once it's loaded
+        if (frame == null) return renderedWidth;
+        quadTextures[quadCount] = frame.textureId;
+        int offset = quadCount * QUAD_FLOATS;
+        quadData[offset] = posX - 0.5F;
+        quadData[offset + 1] = posY - 0.5F;
+        quadData[offset + 2] = posX + renderedWidth - 0.5F;
+        quadData[offset + 3] = posY + 8.49F;
+        quadData[offset + 4] = frame.minU;
+        quadData[offset + 5] = frame.minV;
+        quadData[offset + 6] = frame.maxU;
+        quadData[offset + 7] = frame.maxV;
+        quadData[offset + 8] = red;
+        quadData[offset + 9] = green;
+        quadData[offset + 10] = blue;
+        quadData[offset + 11] = alpha;
+        if (++quadCount >= MAX_BATCHED_QUADS) flushEmotes(red, green, blue, alpha);
         return renderedWidth;
     }
 
+    /**
+     * Draws all emotes collected by {@link #renderEmote(char, char, float, float, float, float, float, float)}, grouped by texture.<br>
+     * Called at the end of FontRenderer.renderStringAtPos(), with the text color of the FontRenderer
+     */
+    public static void flushEmotes(float red, float green, float blue, float alpha) {
+        if (quadCount == 0) return;
+        Tessellator tessellator = Tessellator.getInstance();
+        WorldRenderer renderer = tessellator.getWorldRenderer();
+        for (int first = 0; first < quadCount; first++) {
+            int texture = quadTextures[first];
+            // 0 marks quads that were drawn with an earlier texture
+            if (texture == 0) continue;
+            GlStateManager.bindTexture(texture);
+            renderer.begin(GL11.GL_QUADS, DefaultVertexFormats.POSITION_TEX_COLOR);
+            for (int i = first; i < quadCount; i++) {
+                if (quadTextures[i] != texture) continue;
+                quadTextures[i] = 0;
+                int offset = i * QUAD_FLOATS;
+                float x0 = quadData[offset], y0 = quadData[offset + 1], x1 = quadData[offset + 2], y1 = quadData[offset + 3];
+                float minU = quadData[offset + 4], minV = quadData[offset + 5], maxU = quadData[offset + 6], maxV = quadData[offset + 7];
+                float r = quadData[offset + 8], g = quadData[offset + 9], b = quadData[offset + 10], a = quadData[offset + 11];
+                renderer.pos(x0, y1, 0).tex(minU, maxV).color(r, g, b, a).endVertex();
+                renderer.pos(x1, y1, 0).tex(maxU, maxV).color(r, g, b, a).endVertex();
+                renderer.pos(x1, y0, 0).tex(maxU, minV).color(r, g, b, a).endVertex();
+                renderer.pos(x0, y0, 0).tex(minU, minV).color(r, g, b, a).endVertex();
+            }
+            tessellator.draw();
+        }
+        quadCount = 0;
+        // The current color is undefined after drawing with a color array, restore the text color & make GlStateManager
+        // set the color again next time, since its cached color may be a formatting color
+        GL11.glColor4f(red, green, blue, alpha);
+        GlStateManager.resetColor();
+    }
+
     public static int getEmoteWidth(char c1, char c2) {
         int emoteId = ((c1 - 0xDBC0) << 10) + c2 & 1023;
         StreamEmote emote = StreamEmote.getEmote(emoteId);
@@ -46,6 +46,17 @@ public class FontRendererTransformer implements IStreamTransformer {
                             }
                         }
                     }
+                    // Draw the emotes batched by renderEmote() once the whole string has been processed
+                    int returns = 0;
+                    for (AbstractInsnNode node : methodNode.instructions.toArray()) {
+                        if (node.getOpcode() == Opcodes.RETURN) {
+                            InsnList flush = insertTextColor();
+                            flush.add(TransformerMethod.FontRendererHook_flushEmotes.invokeStatic(TransformerClass.FontRendererHook, false));
+                            methodNode.instructions.insertBefore(node, flush);
+                            returns++;
+                        }
+                    }
+                    LOGGER.info("flushEmotes() inserted before " + returns + " return(s)");
                 } else if (TransformerMethod.FontRenderer_getStringWidth.matches(methodNode)) {
                     Iterator<AbstractInsnNode> iterator = methodNode.instructions.iterator();
                     while (iterator.hasNext()) {
@@ -174,7 +185,7 @@ public class FontRendererTransformer implements IStreamTransformer {
     private static InsnList insertRenderEmote(LabelNode continueLabel) {
         /* Equivalent of Java code:
          * if (c0 >= 0xDBC0 && c0 < 0xDC00 && i+1 < text.length() && text.charAt(i+1) >= 0xDC00 && text.charAt(i+1) < 0xE000) {
-         *   doDraw(me.mini_bomba.streamchatmod.asm.hooks.FontRendererHook.renderEmote(c0, text.charAt(i+1), this.posX, this.posY));
+         *   doDraw(me.mini_bomba.streamchatmod.asm.hooks.FontRendererHook.renderEmote(c0, text.charAt(i+1), this.posX, this.posY, this.red, this.blue, this.green, this.alpha));
          *   i+=2;
          *   continue
          * } else ...
@@ -187,13 +198,14 @@ public class FontRendererTransformer implements IStreamTransformer {
 
         // doDraw(
         list.add(new VarInsnNode(Opcodes.ALOAD, 0));
-        // me.mini_bomba.streamchatmod.asm.hooks.FontRendererHook.renderPUACharacter(c0, text.charAt(i+1), this.posX, this.posY)
+        // me.mini_bomba.streamchatmod.asm.hooks.FontRendererHook.renderPUACharacter(c0, text.charAt(i+1), this.posX, this.posY, this.red, this.blue, this.green, this.alpha)
         list.add(new VarInsnNode(Opcodes.ILOAD, 4));
         list.add(insertString_charAt_plus1(1, 3));
         list.add(new VarInsnNode(Opcodes.ALOAD, 0));
         list.add(TransformerField.FontRenderer_posX.getField(TransformerClass.FontRenderer));
         list.add(new VarInsnNode(Opcodes.ALOAD, 0));
         list.add(TransformerField.FontRenderer_posY.getField(TransformerClass.FontRenderer));
+        list.add(insertTextColor());
         list.add(TransformerMethod.FontRendererHook_renderEmote.invokeStatic(TransformerClass.FontRendererHook, false));
         // );
         list.add(TransformerMethod.FontRenderer_doDraw.invokeVirtual(TransformerClass.FontRenderer, false));
@@ -207,6 +219,16 @@ public class FontRendererTransformer implements IStreamTransformer {
         return list;
     }
 
+    private static InsnList insertTextColor() {
+        // this.red, this.blue, this.green, this.alpha
+        InsnList list = new InsnList();
+        for (TransformerField field : new TransformerField[]{TransformerField.FontRenderer_red, TransformerField.FontRenderer_blue, TransformerField.FontRenderer_green, TransformerField.FontRenderer_alpha}) {
+            list.add(new VarInsnNode(Opcodes.ALOAD, 0));
+            list.add(field.getField(TransformerClass.FontRenderer));
+        }
+        return list;
+    }
+
     private static InsnList insertVerifyPUAEmote(LabelNode falseLabel, int stringVar, int indexVar, int currentCharVar) {
         InsnList list = new InsnList();
 
@@ -48,6 +48,7 @@ public class TwitchCommand extends CommandBase implements ICommandNode<TwitchSub
                 new TwitchMarkerSubcommand(mod, this),
                 new TwitchClipSubcommand(mod, this),
                 new TwitchStatsSubcommand(mod, this),
+                new TwitchHistorySubcommand(mod, this),
                 new TwitchUpdateChecker(mod, this),
                 new TwitchEmotesSubcommand(mod, this)
         ));
@@ -5,6 +5,8 @@ import me.mini_bomba.streamchatmod.StreamUtils;
 import me.mini_bomba.streamchatmod.asm.hooks.FontRendererHook;
 import me.mini_bomba.streamchatmod.commands.ICommandNode;
 import me.mini_bomba.streamchatmod.commands.IHasAutocomplete;
+import me.mini_bomba.streamchatmod.utils.EmoteAtlas;
+import me.mini_bomba.streamchatmod.utils.EmoteTextureCache;
 import me.mini_bomba.streamchatmod.utils.StreamEmote;
 import net.minecraft.command.CommandException;
 import net.minecraft.command.ICommandSender;
@@ -70,6 +72,7 @@ public class TwitchEmotesSubcommand extends TwitchSubcommand implements IHasAuto
             components.add(new ChatComponentText(EnumChatFormatting.AQUA + "Render emotes everywhere: " + (mod.config.showEmotesEverywhere.getBoolean() ? EnumChatFormatting.GREEN + "Enabled" : EnumChatFormatting.RED + "Disabled"))
                     .setChatStyle(new ChatStyle().setChatClickEvent(new ClickEvent(ClickEvent.Action.SUGGEST_COMMAND, "/twitch emotes renderEverywhere"))));
             components.add(new ChatComponentText(EnumChatFormatting.GRAY + "Used internal emote slots: " + EnumChatFormatting.AQUA + StreamEmote.getEmoteCount() + EnumChatFormatting.GRAY + "/65536"));
+            components.add(new ChatComponentText(EnumChatFormatting.GRAY + "Loaded emote textures: " + EnumChatFormatting.AQUA + EmoteTextureCache.getLoadedCount() + EnumChatFormatting.GRAY + " (" + EnumChatFormatting.AQUA + (EmoteTextureCache.getUsedBytes() / (1024 * 1024)) + EnumChatFormatting.GRAY + "/" + mod.config.emoteTextureBudget.getInt() + " MB, " + EnumChatFormatting.AQUA + EmoteAtlas.getPageCount() + EnumChatFormatting.GRAY + " atlas pages)"));
             StreamUtils.addMessages(sender, components.toArray(new IChatComponent[0]));
         } else {
             if (args[0].equalsIgnoreCase("animated")) {
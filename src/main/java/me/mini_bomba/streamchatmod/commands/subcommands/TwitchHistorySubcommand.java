@@ -0,0 +1,141 @@
+package me.mini_bomba.streamchatmod.commands.subcommands;
+
+import me.mini_bomba.streamchatmod.StreamChatMod;
+import me.mini_bomba.streamchatmod.commands.ICommandNode;
+import me.mini_bomba.streamchatmod.commands.IHasAutocomplete;
+import me.mini_bomba.streamchatmod.utils.ChatComponentTwitchMessage;
+import me.mini_bomba.streamchatmod.utils.TwitchChatHistory;
+import net.minecraft.client.Minecraft;
+import net.minecraft.client.gui.FontRenderer;
+import net.minecraft.client.gui.GuiNewChat;
+import net.minecraft.client.gui.GuiUtilRenderComponents;
+import net.minecraft.command.CommandException;
+import net.minecraft.command.ICommandSender;
+import net.minecraft.event.ClickEvent;
+import net.minecraft.event.HoverEvent;
+import net.minecraft.util.ChatComponentText;
+import net.minecraft.util.ChatStyle;
+import net.minecraft.util.EnumChatFormatting;
+import net.minecraft.util.IChatComponent;
+import net.minecraft.util.MathHelper;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+public class TwitchHistorySubcommand extends TwitchSubcommand implements IHasAutocomplete {
+    // Chat line ID of the shown page, so showing another page replaces it
+    private static final int HISTORY_CHAT_LINE_ID = 0x53434D48;
+
+    public TwitchHistorySubcommand(StreamChatMod mod, ICommandNode<TwitchSubcommand> parentCommand) {
+        super(mod, parentCommand);
+    }
+
+    @Override
+    public @NotNull List<TwitchSubcommand> getSubcommands() {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public @NotNull String getSubcommandName() {
+        return "history";
+    }
+
+    @Override
+    public @NotNull List<String> getSubcommandAliases() {
+        return Collections.singletonList("log");
+    }
+
+    @Override
+    public @NotNull String getSubcommandUsage() {
+        return "history [channel] [page]";
+    }
+
+    @Override
+    public @NotNull String getDescription() {
+        return "Shows older Twitch messages, of all channels or of a single channel";
+    }
+
+    @Override
+    public TwitchSubcommandCategory getCategory() {
+        return TwitchSubcommandCategory.GENERAL;
+    }
+
+    @Override
+    public void processSubcommand(ICommandSender sender, String[] args) throws CommandException {
+        String channel = null;
+        int page = 1;
+        int pageArg = 0;
+        if (args.length >= 1 && !args[0].matches("\\d+")) {
+            if (!args[0].equalsIgnoreCase("all")) channel = args[0];
+            pageArg = 1;
+        }
+        if (args.length > pageArg) {
+            try {
+                page = Integer.parseInt(args[pageArg]);
+            } catch (NumberFormatException e) {
+                throw new CommandException("Invalid page number: " + args[pageArg]);
+            }
+            if (page < 1) throw new CommandException("Invalid page number: " + args[pageArg]);
+        }
+        String channelId = null;
+        if (channel != null) {
+            channelId = TwitchChatHistory.getChannelId(channel);
+            if (channelId == null) throw new CommandException("No messages from " + channel + " were received yet");
+        }
+        GuiNewChat chat = Minecraft.getMinecraft().ingameGUI.getChatGUI();
+        // Fill the open chat, leaving a line for the header. Pages are split by the wrapped lines of the messages.
+        int maxLines = Math.max(1, chat.getLineCount() - 1);
+        int width = MathHelper.floor_float(chat.getChatWidth() / chat.getChatScale());
+        FontRenderer fontRenderer = Minecraft.getMinecraft().fontRendererObj;
+        List<ChatComponentTwitchMessage> messages = new ArrayList<>();
+        int currentPage = 1;
+        int usedLines = 0;
+        boolean hasOlder = false;
+        for (ChatComponentTwitchMessage message : TwitchChatHistory.getNewest(channelId)) {
+            int lines = GuiUtilRenderComponents.splitText(message, width, fontRenderer, false, false).size();
+            if (usedLines > 0 && usedLines + lines > maxLines) {
+                if (currentPage == page) {
+                    hasOlder = true;
+                    break;
+                }
+                currentPage++;
+                usedLines = 0;
+            }
+            usedLines += lines;
+            if (currentPage == page) messages.add(message);
+        }
+        if (page > 1 && messages.isEmpty())
+            throw new CommandException("There " + (currentPage == 1 ? "is only 1 page" : "are only " + currentPage + " pages"));
+        Collections.reverse(messages);
+
+        String target = channel == null ? "all" : channel;
+        IChatComponent component = new ChatComponentText(EnumChatFormatting.GREEN + "Twitch history of " + (channel == null ? "all channels" : EnumChatFormatting.AQUA + channel) + EnumChatFormatting.GREEN + " (page " + page + ") ");
+        if (hasOlder) component.appendSibling(pageLink("[older]", target, page + 1));
+        if (page > 1) component.appendSibling(pageLink("[newer]", target, page - 1));
+        if (messages.isEmpty()) component.appendSibling(new ChatComponentText("\n" + EnumChatFormatting.GRAY + EnumChatFormatting.ITALIC + "No messages"));
+        for (ChatComponentTwitchMessage message : messages) {
+            component.appendSibling(new ChatComponentText("\n"));
+            // Appending a component changes its parent style, so the message in the chat is left alone
+            component.appendSibling(message.createCopy());
+        }
+        chat.printChatMessageWithOptionalDeletion(component, HISTORY_CHAT_LINE_ID);
+    }
+
+    private static IChatComponent pageLink(String text, String target, int page) {
+        IChatComponent link = new ChatComponentText(text + " ");
+        link.setChatStyle(new ChatStyle()
+                .setColor(EnumChatFormatting.YELLOW)
+                .setChatHoverEvent(new HoverEvent(HoverEvent.Action.SHOW_TEXT, new ChatComponentText("Show page " + page)))
+                .setChatClickEvent(new ClickEvent(ClickEvent.Action.RUN_COMMAND, "/twitch history " + target + " " + page)));
+        return link;
+    }
+
+    @Override
+    public List<String> getAutocompletions(String[] args) {
+        if (args.length > 1 || mod.twitch == null || !mod.config.twitchEnabled.getBoolean()) return null;
+        return mod.twitch.getChat().getChannels().stream().filter(channel -> channel.startsWith(args[0])).collect(Collectors.toList());
+    }
+}
@@ -4,12 +4,12 @@ import com.github.twitch4j.chat.events.channel.ChannelMessageEvent;
 import com.github.twitch4j.common.enums.CommandPermission;
 import com.github.twitch4j.helix.domain.Clip;
 import com.github.twitch4j.helix.domain.Game;
-import com.google.common.primitives.Chars;
 import me.mini_bomba.streamchatmod.StreamChatMod;
 import me.mini_bomba.streamchatmod.StreamUtils;
 import me.mini_bomba.streamchatmod.utils.ChatComponentStreamEmote;
 import me.mini_bomba.streamchatmod.utils.ChatComponentTwitchMessage;
 import me.mini_bomba.streamchatmod.utils.ColorUtil;
+import me.mini_bomba.streamchatmod.utils.StreamEmote;
 import net.minecraft.event.ClickEvent;
 import net.minecraft.event.HoverEvent;
 import net.minecraft.util.ChatComponentText;
@@ -19,110 +19,187 @@ import net.minecraft.util.IChatComponent;
 import org.apache.commons.lang.StringUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.Nullable;
 
 import java.util.*;
-import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import java.util.stream.Collectors;
 
 public class TwitchMessageHandler implements Runnable {
     private final ChannelMessageEvent event;
     private final StreamChatMod mod;
+    @Nullable
+    private final ChatComponentText counter;
+    private boolean mentioned = false;
+    // clip links found by buildMessage(), looked up once the message is published
+    private List<ClipComponentMapping> clips = Collections.emptyList();
     private static final Logger LOGGER = LogManager.getLogger();
     private static final char formatChar = '\u00a7';
     private static final String validFormats = "0123456789abcdefklmnorABCDEFKLMNORzZ";
     public static final Pattern urlPattern = Pattern.compile("https?://[^.\\s/]+(?:\\.[^.\\s/]+)+\\S*");
-    public static final Pattern whitespacePattern = Pattern.compile("\\s+");
-    private static final Pattern formatCodePattern = Pattern.compile(formatChar + "[0-9a-fA-Fk-rK-RzZ]");
     private static final String clipsDomain = "https://clips.twitch.tv/";
+    // Most messages are a few text runs with a handful of emotes in between
+    private static final int EXPECTED_COMPONENTS = 8;
 
     public TwitchMessageHandler(StreamChatMod mod, ChannelMessageEvent event) {
+        this(mod, event, null);
+    }
+
+    /**
+     * @param counter component appended to the message, used to show the amount of folded repeats of this message
+     */
+    public TwitchMessageHandler(StreamChatMod mod, ChannelMessageEvent event, @Nullable ChatComponentText counter) {
         this.mod = mod;
         this.event = event;
+        this.counter = counter;
     }
 
-    private String processColorCodes(String message, boolean allowFormatting) {
-        message = message.replace(formatChar, '&');
-        if (allowFormatting) {
-            char[] msg = message.toCharArray();
-            for (int i = 0; i < msg.length - 1; i++) {
-                if (msg[i] == '&') {
-                    if (msg[i + 1] == '&')
-                        msg[i++] = 0;
-                    else if (validFormats.contains(String.valueOf(msg[i + 1])))
-                        msg[i++] = formatChar;
+    /**
+     * Turns "&" color codes into formatting codes if formatting is allowed. Formatting characters sent by chatters
+     * are always turned into "&", so chatters can't use formatting that isn't allowed.
+     */
+    public static String processColorCodes(String message, boolean allowFormatting) {
+        if (!allowFormatting) return message.replace(formatChar, '&');
+        int length = message.length();
+        StringBuilder builder = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            char c = message.charAt(i);
+            if (c == formatChar) c = '&';
+            if (c == '&' && i + 1 < length) {
+                char next = message.charAt(i + 1);
+                if (next == '&' || next == formatChar) {
+                    // "&&" is an escaped ampersand
+                    builder.append('&');
+                    i++;
+                    continue;
+                } else if (validFormats.indexOf(next) >= 0) {
+                    builder.append(formatChar).append(next);
+                    i++;
+                    continue;
                 }
             }
-            message = Chars.asList(msg).stream().filter(c -> c != 0).map(Object::toString).collect(Collectors.joining());
+            builder.append(c);
         }
-        return message;
+        return builder.toString();
     }
 
+    /**
+     * Splits a message into text & emote components.<br>
+     * The message is scanned once, char by char: words are separated by spaces, tabs & newlines, the active color/format
+     * is tracked while scanning each word and text between emotes is emitted as a single component, prefixed with the
+     * color/format that was active at its start. Whitespace is kept as-is.
+     *
+     * @param mod       the mod instance, used for emote lookups
+     * @param message   the message to process
+     * @param channelId the ID of the channel the message was sent in (for channel emotes), may be null
+     * @return a list of ChatComponentText & ChatComponentStreamEmote components
+     */
     public static List<IChatComponent> processEmotes(StreamChatMod mod, String message, String channelId) {
-        List<IChatComponent> result = new LinkedList<>();
-        List<String> nextComponent = new LinkedList<>();
+        int length = message.length();
+        List<IChatComponent> result = new ArrayList<>(EXPECTED_COMPONENTS);
+        // color & format at the start of the pending text run
         char color = 0;
         char format = 0;
+        // color & format after the last scanned (non-emote) word
         char nextColor = 0;
         char nextFormat = 0;
-        Matcher whitespace = whitespacePattern.matcher(message);
-        if (message.length() > 0 && whitespacePattern.matcher(message.substring(0, 1)).find() && whitespace.find())
-            nextComponent.add(whitespace.group());
-        for (String word : StringUtils.split(message, " \n\t")) {
-            if (mod.emotes.isEmote(channelId, word)) {
-                if (nextComponent.size() > 0)
-                    result.add(new ChatComponentText((color != 0 ? "" + formatChar + color : "") + (format != 0 ? "" + formatChar + format : "") + String.join("", nextComponent)));
-                nextComponent.clear();
-                if (whitespace.find()) nextComponent.add(whitespace.group());
-                color = nextColor;
-                format = nextFormat;
-                result.add(new ChatComponentStreamEmote(mod, mod.emotes.getEmote(channelId, word)));
-            } else {
-                Matcher formatMatcher = formatCodePattern.matcher(word);
-                while (formatMatcher.find()) {
-                    char code = formatMatcher.group().charAt(1);
-                    if ("rR".indexOf(code) >= 0) {
-                        nextColor = 0;
-                        nextFormat = 0;
-                    } else if ("klmnoKLMNO".indexOf(code) >= 0)
-                        nextFormat = code;
-                    else {
-                        nextColor = code;
-                        nextFormat = 0;
-                    }
+        int runStart = 0;
+        int i = 0;
+        while (i < length) {
+            if (isWordSeparator(message.charAt(i))) {
+                i++;
+                continue;
+            }
+            int wordStart = i;
+            char wordColor = nextColor;
+            char wordFormat = nextFormat;
+            for (; i < length; i++) {
+                char c = message.charAt(i);
+                if (isWordSeparator(c)) break;
+                if (c != formatChar || i + 1 >= length) continue;
+                char code = message.charAt(i + 1);
+                if (!isFormatCode(code)) continue;
+                if (code == 'r' || code == 'R') {
+                    wordColor = 0;
+                    wordFormat = 0;
+                } else if ((code >= 'k' && code <= 'o') || (code >= 'K' && code <= 'O'))
+                    wordFormat = code;
+                else {
+                    wordColor = code;
+                    wordFormat = 0;
                 }
-                nextComponent.add(word);
-                if (whitespace.find()) nextComponent.add(whitespace.group());
             }
+            StreamEmote emote = mod.emotes.getEmote(channelId, message, wordStart, i);
+            if (emote == null) {
+                nextColor = wordColor;
+                nextFormat = wordFormat;
+                continue;
+            }
+            if (wordStart > runStart)
+                result.add(createTextComponent(message, runStart, wordStart, color, format));
+            result.add(new ChatComponentStreamEmote(mod, emote));
+            runStart = i;
+            color = nextColor;
+            format = nextFormat;
         }
-        if (nextComponent.size() > 0)
-            result.add(new ChatComponentText((color != 0 ? "" + formatChar + color : "") + (format != 0 ? "" + formatChar + format : "") + String.join("", nextComponent)));
+        if (length > runStart)
+            result.add(createTextComponent(message, runStart, length, color, format));
         return result;
     }
 
+    private static ChatComponentText createTextComponent(String message, int start, int end, char color, char format) {
+        StringBuilder builder = new StringBuilder(end - start + 4);
+        if (color != 0) builder.append(formatChar).append(color);
+        if (format != 0) builder.append(formatChar).append(format);
+        builder.append(message, start, end);
+        return new ChatComponentText(builder.toString());
+    }
+
+    private static boolean isWordSeparator(char c) {
+        return c == ' ' || c == '\n' || c == '\t';
+    }
+
+    private static boolean isFormatCode(char c) {
+        return (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F') || (c >= 'k' && c <= 'r') || (c >= 'K' && c <= 'R') || c == 'z' || c == 'Z';
+    }
+
     private List<IChatComponent> processEmotes(String message) {
         return processEmotes(mod, message, event.getChannel().getId());
     }
 
+    /**
+     * Builds the message and schedules it to be added to the chat.<br>
+     * Prefer calling buildMessage() from a worker thread and publish() afterwards, so only adding the message happens on the client thread.
+     */
     @Override
     public void run() {
-        String[] removeChannels = mod.config.twitchBlacklistedChannels.getStringList();
-        String[] removePrefix = mod.config.twitchHiddenPrefix.getStringList();
-
-        for (String s: removeChannels) {
-            String a = s.toLowerCase(Locale.US);
-            String b = event.getUser().getName().toLowerCase(Locale.US);
-
-            if(Objects.equals(a, b)) return;
-        }
+        IChatComponent component = buildMessage();
+        if (component != null) publish(component);
+    }
 
-        for (String s: removePrefix) {
-            String a = s.toLowerCase(Locale.US);
-            String b = event.getMessage().substring(0, 1);
+    /**
+     * Queues the built message (and message sounds) to be added to the chat on the client thread & starts looking up its clips
+     *
+     * @param component the component returned by buildMessage()
+     */
+    public void publish(IChatComponent component) {
+        StreamUtils.queueAddChatMessage(component);
+        if (mentioned || mod.config.playSoundOnMessage.getBoolean())
+            StreamUtils.queueMessageSound((float) mod.config.messageSoundVolume.getDouble());
+        // Started only now, so the message is already queued when the lookup requests it to be wrapped again
+        if (!clips.isEmpty())
+            new Thread(new ClipLookupTask(component, clips)).start();
+    }
 
-            if(a.equalsIgnoreCase(b)) return;
-        }
+    /**
+     * Builds the full chat component for the message: badges, emotes, links & clips.<br>
+     * Does not touch the chat itself, so this may be called from any thread.
+     *
+     * @return the message component, or null if the message should not be shown
+     */
+    @Nullable
+    public IChatComponent buildMessage() {
+        if (isHidden()) return null;
 
         //if (event.getUser().getId().equals("624137710") || event.getUser().getId().equals("100135110")) return;
 
@@ -156,7 +233,7 @@ public class TwitchMessageHandler implements Runnable {
 
         Matcher matcher = urlPattern.matcher(message);
         List<ClipComponentMapping> clips = new ArrayList<>();
-        IChatComponent component = new ChatComponentTwitchMessage(event.getMessageEvent().getMessageId().orElse(""), event.getChannel().getId(), event.getUser().getId(), (showChannel ? mod.config.getTwitchPrefixWithChannel(event.getChannel().getName()) : mod.config.getFullTwitchPrefix()) + " ");
+        IChatComponent component = new ChatComponentTwitchMessage(event.getMessageEvent().getMessageId().orElse(""), event.getChannel().getId(), event.getChannel().getName(), event.getUser().getId(), (showChannel ? mod.config.getTwitchPrefixWithChannel(event.getChannel().getName()) : mod.config.getFullTwitchPrefix()) + " ");
         if (badges.getSiblings().size() > 0) component.appendSibling(badges);
 
         String username = event.getMessageEvent().getTagValue("display-name").orElse(event.getUser().getName());
@@ -198,15 +275,41 @@ public class TwitchMessageHandler implements Runnable {
         }
         if (message.length() > lastEnd)
             processEmotes(processColorCodes(message.substring(lastEnd), allowFormatting)).forEach(component::appendSibling);
+        if (counter != null) component.appendSibling(counter);
         ChatStyle style = new ChatStyle().setChatClickEvent(new ClickEvent(ClickEvent.Action.SUGGEST_COMMAND, "/twitch delete " + event.getChannel().getName() + " " + event.getMessageEvent().getMessageId().orElse("")));
         component.setChatStyle(style);
-        StreamUtils.addMessage(component);
 
-        if (mod.getTwitchUsername() != null && event.getMessage().toLowerCase(Locale.US).contains("@" + mod.getTwitchUsername())) StreamUtils.playSound("note.pling", (float) mod.config.messageSoundVolume.getDouble(), 1.25f);
-        if (mod.config.playSoundOnMessage.getBoolean()) StreamUtils.playSound("note.pling", (float) mod.config.messageSoundVolume.getDouble(), 1.25f);
+        mentioned = isMention(mod, event.getMessage());
 
-        if (!clips.isEmpty())
-            new Thread(new ClipLookupTask(clips)).start();
+        this.clips = clips;
+        return component;
+    }
+
+    public static boolean isMention(StreamChatMod mod, String message) {
+        return mod.getTwitchUsername() != null && message.toLowerCase(Locale.US).contains("@" + mod.getTwitchUsername());
+    }
+
+    /**
+     * @return true if the message was sent by a blacklisted user or starts with a hidden prefix
+     */
+    public boolean isHidden() {
+        String[] removeChannels = mod.config.twitchBlacklistedChannels.getStringList();
+        String[] removePrefix = mod.config.twitchHiddenPrefix.getStringList();
+
+        for (String s: removeChannels) {
+            String a = s.toLowerCase(Locale.US);
+            String b = event.getUser().getName().toLowerCase(Locale.US);
+
+            if(Objects.equals(a, b)) return true;
+        }
+
+        for (String s: removePrefix) {
+            String a = s.toLowerCase(Locale.US);
+            String b = event.getMessage().substring(0, 1);
+
+            if(a.equalsIgnoreCase(b)) return true;
+        }
+        return false;
     }
 
     private static class ClipComponentMapping {
@@ -224,9 +327,11 @@ public class TwitchMessageHandler implements Runnable {
 
     private class ClipLookupTask implements Runnable {
 
+        private final IChatComponent message;
         private final List<ClipComponentMapping> clips;
 
-        private ClipLookupTask(List<ClipComponentMapping> clips) {
+        private ClipLookupTask(IChatComponent message, List<ClipComponentMapping> clips) {
+            this.message = message;
             this.clips = clips;
         }
 
@@ -234,7 +339,7 @@ public class TwitchMessageHandler implements Runnable {
         public void run() {
             for (ClipComponentMapping clip : clips) {
                 twitchClipComponent(clip.component, mod.getTwitchClip(clip.clipId), clip.clipUrl);
-                StreamUtils.queueRefreshChat();
+                StreamUtils.queueRefreshMessage(message);
             }
         }
     }
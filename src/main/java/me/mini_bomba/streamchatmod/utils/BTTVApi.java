@@ -1,8 +1,10 @@
 package me.mini_bomba.streamchatmod.utils;
 
 import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
 import java.io.InputStreamReader;
@@ -16,32 +18,60 @@ public class BTTVApi {
     private static final Map<String, EmoteOwner> bttvUsers = new HashMap<>();
 
     public static List<BTTVEmote> getGlobalEmotes() {
+        EmoteIndex.Entry<List<BTTVEmote>> entry = getGlobalEmotes(null);
+        return entry != null ? entry.data : Collections.emptyList();
+    }
+
+    /**
+     * Fetches the global emotes, unless they have not changed since the cached entry was fetched
+     *
+     * @param cached the previously fetched entry, may be null
+     * @return the new (or cached, if not modified) entry, or null if the request failed
+     */
+    @Nullable
+    public static EmoteIndex.Entry<List<BTTVEmote>> getGlobalEmotes(@Nullable EmoteIndex.Entry<List<BTTVEmote>> cached) {
         Gson gson = new Gson();
         try {
-            LocalEmote[] emotes = gson.fromJson(new InputStreamReader(new URL("https://api.betterttv.net/3/cached/emotes/global").openStream()), LocalEmote[].class);
-            return Arrays.stream(emotes).map(emote -> new BTTVEmote(emote.id, emote.code, getImageType(emote.imageType), emote.userId)).collect(Collectors.toList());
-        } catch (IOException e) {
+            return EmoteIndex.fetch("https://api.betterttv.net/3/cached/emotes/global", cached, null, reader -> {
+                LocalEmote[] emotes = gson.fromJson(reader, LocalEmote[].class);
+                return Arrays.stream(emotes).map(emote -> new BTTVEmote(emote.id, emote.code, getImageType(emote.imageType), emote.userId)).collect(Collectors.toList());
+            });
+        } catch (IOException | JsonParseException e) {
             LOGGER.error("Failed to fetch BTTV global emotes:");
             e.printStackTrace();
-            return Collections.emptyList();
+            return null;
         }
     }
 
     public static List<BTTVEmote> getChannelEmotes(String twitchId) {
+        EmoteIndex.Entry<List<BTTVEmote>> entry = getChannelEmotes(twitchId, null);
+        return entry != null ? entry.data : Collections.emptyList();
+    }
+
+    /**
+     * Fetches the channel & shared emotes of a channel, unless they have not changed since the cached entry was fetched
+     *
+     * @param cached the previously fetched entry, may be null
+     * @return the new (or cached, if not modified) entry, or null if the request failed
+     */
+    @Nullable
+    public static EmoteIndex.Entry<List<BTTVEmote>> getChannelEmotes(String twitchId, @Nullable EmoteIndex.Entry<List<BTTVEmote>> cached) {
         Gson gson = new Gson();
         try {
-            CachedTwitchUser twitchUser = gson.fromJson(new InputStreamReader(new URL("https://api.betterttv.net/3/cached/users/twitch/" + twitchId).openStream()), CachedTwitchUser.class);
-            return Stream.concat(
-                    twitchUser.channelEmotes.stream().map(emote -> new BTTVEmote(emote.id, emote.code, getImageType(emote.imageType), emote.userId)),
-                    twitchUser.sharedEmotes.stream().map(emote -> {
-                        bttvUsers.put(emote.user.id, emote.user);
-                        return new BTTVEmote(emote.id, emote.code, getImageType(emote.imageType), emote.user.id);
-                    })
-            ).collect(Collectors.toList());
-        } catch (IOException e) {
+            return EmoteIndex.fetch("https://api.betterttv.net/3/cached/users/twitch/" + twitchId, cached, Collections.emptyList(), reader -> {
+                CachedTwitchUser twitchUser = gson.fromJson(reader, CachedTwitchUser.class);
+                return Stream.concat(
+                        twitchUser.channelEmotes.stream().map(emote -> new BTTVEmote(emote.id, emote.code, getImageType(emote.imageType), emote.userId)),
+                        twitchUser.sharedEmotes.stream().map(emote -> {
+                            bttvUsers.put(emote.user.id, emote.user);
+                            return new BTTVEmote(emote.id, emote.code, getImageType(emote.imageType), emote.user.id);
+                        })
+                ).collect(Collectors.toList());
+            });
+        } catch (IOException | JsonParseException e) {
             LOGGER.error("Failed to fetch BTTV channel emotes:");
             e.printStackTrace();
-            return Collections.emptyList();
+            return null;
         }
     }
 
@@ -0,0 +1,226 @@
+package me.mini_bomba.streamchatmod.utils;
+
+import net.minecraft.util.EnumChatFormatting;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+
+/**
+ * Tracks the message rate of a single Twitch channel and decides how each message should be shown.<br>
+ * The rate is measured over a sliding window of 100ms buckets. Above the configured thresholds the channel switches to
+ * sampling, aggregation or mentions-only mode. It switches back once the rate stays below 70% of the threshold for a
+ * few seconds, so the mode does not flicker around a threshold.<br>
+ * All methods are synchronized: messages are counted on the Twitch event thread, summaries are taken on the client thread.
+ */
+public class ChannelRateGovernor {
+    private static final int BUCKET_MILLIS = 100;
+    private static final int BUCKET_COUNT = 20;
+    private static final double HYSTERESIS = 0.7;
+    private static final long MIN_MODE_MILLIS = 3000;
+    private static final long SUMMARY_MILLIS = 2000;
+    private static final int MAX_AGGREGATED_KEYS = 256;
+    private static final int MAX_SUMMARY_ENTRIES = 5;
+
+    public final String channelId;
+    public final String channelName;
+    private final int[] buckets = new int[BUCKET_COUNT];
+    private long currentBucket = 0;
+    private int windowTotal = 0;
+    private Mode mode = Mode.NORMAL;
+    private long modeSince = 0;
+    private long lastSummary = 0;
+    private int sampleCounter = 0;
+    private int hiddenMessages = 0;
+    private final Map<String, Integer> aggregated = new HashMap<>();
+
+    public ChannelRateGovernor(String channelId, String channelName) {
+        this.channelId = channelId;
+        this.channelName = channelName;
+    }
+
+    /**
+     * Counts a new message & decides what to do with it
+     *
+     * @param message    the raw message text
+     * @param mentioned  whether the message mentions the user (mentions are always shown)
+     * @param thresholds current rate thresholds, in messages per second
+     * @param now        current time in milliseconds
+     * @return the action to take for this message
+     */
+    public synchronized Action onMessage(String message, boolean mentioned, Thresholds thresholds, long now) {
+        advance(now);
+        buckets[(int) (currentBucket % BUCKET_COUNT)]++;
+        windowTotal++;
+        updateMode(thresholds, now);
+        if (mentioned) return Action.SHOW;
+        switch (mode) {
+            case SAMPLING:
+                int interval = Math.max(2, (int) Math.ceil(getRate() / thresholds.sampling));
+                if (++sampleCounter >= interval) {
+                    sampleCounter = 0;
+                    return Action.SHOW;
+                }
+                hiddenMessages++;
+                return Action.HIDE;
+            case AGGREGATE:
+                String key = aggregationKey(message);
+                Integer count = aggregated.get(key);
+                if (count == null && aggregated.size() >= MAX_AGGREGATED_KEYS)
+                    hiddenMessages++;
+                else
+                    aggregated.put(key, count == null ? 1 : count + 1);
+                return Action.HIDE;
+            case MENTIONS_ONLY:
+                hiddenMessages++;
+                return Action.HIDE;
+            default:
+                return Action.SHOW;
+        }
+    }
+
+    /**
+     * Updates the mode (so that it also decays while no messages arrive) & returns a summary of the hidden messages, if one is due
+     *
+     * @param thresholds current rate thresholds, in messages per second
+     * @param now        current time in milliseconds
+     * @return the summary, or null if there is nothing to report yet
+     */
+    @Nullable
+    public synchronized Summary poll(Thresholds thresholds, long now) {
+        advance(now);
+        Mode previousMode = mode;
+        updateMode(thresholds, now);
+        boolean modeChanged = previousMode != mode;
+        if (!modeChanged && now - lastSummary < SUMMARY_MILLIS) return null;
+        if (!modeChanged && hiddenMessages == 0 && aggregated.isEmpty()) return null;
+        lastSummary = now;
+        List<Map.Entry<String, Integer>> entries = new ArrayList<>(aggregated.entrySet());
+        entries.sort(Map.Entry.<String, Integer>comparingByValue().reversed());
+        int hidden = hiddenMessages;
+        for (int i = MAX_SUMMARY_ENTRIES; i < entries.size(); i++) hidden += entries.get(i).getValue();
+        if (entries.size() > MAX_SUMMARY_ENTRIES) entries = entries.subList(0, MAX_SUMMARY_ENTRIES);
+        Summary summary = new Summary(modeChanged ? previousMode : null, mode, getRate(), entries, hidden);
+        aggregated.clear();
+        hiddenMessages = 0;
+        return summary;
+    }
+
+    public synchronized Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * @return the message rate over the sliding window, in messages per second
+     */
+    public synchronized double getRate() {
+        return windowTotal * 1000d / (BUCKET_COUNT * BUCKET_MILLIS);
+    }
+
+    public synchronized double getRate(long now) {
+        advance(now);
+        return getRate();
+    }
+
+    private void advance(long now) {
+        long bucket = now / BUCKET_MILLIS;
+        if (bucket <= currentBucket) return;
+        if (bucket - currentBucket >= BUCKET_COUNT) {
+            Arrays.fill(buckets, 0);
+            windowTotal = 0;
+        } else {
+            for (long b = currentBucket + 1; b <= bucket; b++) {
+                int index = (int) (b % BUCKET_COUNT);
+                windowTotal -= buckets[index];
+                buckets[index] = 0;
+            }
+        }
+        currentBucket = bucket;
+    }
+
+    private void updateMode(Thresholds thresholds, long now) {
+        double rate = getRate();
+        Mode target = thresholds.modeFor(rate);
+        if (target.ordinal() > mode.ordinal()) {
+            setMode(target, now);
+        } else if (target.ordinal() < mode.ordinal() && now - modeSince >= MIN_MODE_MILLIS) {
+            // Only step down once the rate is comfortably below the current threshold
+            Mode lowered = thresholds.modeFor(rate / HYSTERESIS);
+            if (lowered.ordinal() < mode.ordinal()) setMode(lowered, now);
+        }
+    }
+
+    private void setMode(Mode newMode, long now) {
+        mode = newMode;
+        modeSince = now;
+        sampleCounter = 0;
+    }
+
+    /**
+     * Normalizes a message for aggregation: messages repeating a single word ("LUL LUL LUL") are counted as that word
+     */
+    private static String aggregationKey(String message) {
+        String[] words = message.trim().split("\\s+");
+        for (String word : words)
+            if (!word.equals(words[0])) return String.join(" ", words);
+        return words[0];
+    }
+
+    public enum Mode {
+        NORMAL("Normal", EnumChatFormatting.GREEN),
+        SAMPLING("Sampling", EnumChatFormatting.YELLOW),
+        AGGREGATE("Aggregating", EnumChatFormatting.GOLD),
+        MENTIONS_ONLY("Mentions only", EnumChatFormatting.RED);
+
+        public final String description;
+        public final EnumChatFormatting color;
+
+        Mode(String description, EnumChatFormatting color) {
+            this.description = description;
+            this.color = color;
+        }
+    }
+
+    public enum Action {
+        SHOW,
+        HIDE
+    }
+
+    public static class Thresholds {
+        public final double sampling;
+        public final double aggregate;
+        public final double mentionsOnly;
+
+        /**
+         * Thresholds <= 0 disable the given mode
+         */
+        public Thresholds(double sampling, double aggregate, double mentionsOnly) {
+            this.sampling = sampling;
+            this.aggregate = aggregate;
+            this.mentionsOnly = mentionsOnly;
+        }
+
+        public Mode modeFor(double rate) {
+            if (mentionsOnly > 0 && rate >= mentionsOnly) return Mode.MENTIONS_ONLY;
+            if (aggregate > 0 && rate >= aggregate) return Mode.AGGREGATE;
+            if (sampling > 0 && rate >= sampling) return Mode.SAMPLING;
+            return Mode.NORMAL;
+        }
+    }
+
+    public static class Summary {
+        @Nullable
+        public final Mode previousMode;
+        public final Mode mode;
+        public final double rate;
+        public final List<Map.Entry<String, Integer>> aggregated;
+        public final int hiddenMessages;
+
+        private Summary(@Nullable Mode previousMode, Mode mode, double rate, List<Map.Entry<String, Integer>> aggregated, int hiddenMessages) {
+            this.previousMode = previousMode;
+            this.mode = mode;
+            this.rate = rate;
+            this.aggregated = aggregated;
+            this.hiddenMessages = hiddenMessages;
+        }
+    }
+}
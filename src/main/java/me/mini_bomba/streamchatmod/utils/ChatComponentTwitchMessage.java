@@ -5,12 +5,27 @@ import net.minecraft.util.ChatComponentText;
 public class ChatComponentTwitchMessage extends ChatComponentText {
     public final String messageId;
     public final String channelId;
+    public final String channelName;
     public final String userId;
+    // set once the message was deleted or trimmed from the chat
+    private volatile boolean removed = false;
 
-    public ChatComponentTwitchMessage(String messageId, String channelId, String userId, String msg) {
+    public ChatComponentTwitchMessage(String messageId, String channelId, String channelName, String userId, String msg) {
         super(msg);
         this.messageId = messageId;
         this.channelId = channelId;
+        this.channelName = channelName;
         this.userId = userId;
     }
+
+    /**
+     * @return true if the message was removed from the chat
+     */
+    public boolean isRemoved() {
+        return removed;
+    }
+
+    void markRemoved() {
+        removed = true;
+    }
 }
@@ -0,0 +1,147 @@
+package me.mini_bomba.streamchatmod.utils;
+
+import net.minecraft.client.gui.ChatLine;
+
+import java.util.*;
+
+/**
+ * Index of the chat lines showing Twitch messages, by message ID, by user & by channel.<br>
+ * Deleting messages only looks up & marks the affected lines. All marked lines are removed from the chat in a single
+ * pass by {@link #flush(List)}, so the chat only needs to be updated once per tick, no matter how many messages were
+ * deleted.<br>
+ * Lines are indexed as they are added. If a line could not be indexed, or the chat was cleared, the index is rebuilt
+ * from the chat lines.<br>
+ * The index also knows the order of the lines, so the oldest Twitch lines can be trimmed off.<br>
+ * <b>All methods must be called from the client thread</b>
+ */
+public class ChatLineIndex {
+    private static final Map<String, ChatLine> byMessage = new HashMap<>();
+    // channel ID -> user ID -> lines
+    private static final Map<String, Map<String, Set<ChatLine>>> byUser = new HashMap<>();
+    private static final Map<String, Set<ChatLine>> byChannel = new HashMap<>();
+    private static final Set<ChatLine> pendingRemoval = new HashSet<>();
+    // indexed lines, oldest first; may still contain lines that were removed since
+    private static final Deque<ChatLine> order = new ArrayDeque<>();
+    private static int indexedCount = 0;
+    private static boolean complete = true;
+
+    /**
+     * Indexes the line of a message that was just added to the chat
+     *
+     * @param chatLines the chat lines, newest first
+     * @param message   the added message
+     */
+    public static void track(List<ChatLine> chatLines, ChatComponentTwitchMessage message) {
+        if (chatLines.isEmpty() || chatLines.get(0).getChatComponent() != message) {
+            // The message didn't end up where the vanilla chat puts it, look for it when something is deleted
+            complete = false;
+            return;
+        }
+        add(chatLines.get(0));
+        // Lines that were trimmed off the end of the chat stay indexed until the index is much larger than the chat
+        if (order.size() > chatLines.size() * 2 + 100) rebuild(chatLines);
+    }
+
+    public static void removeMessage(List<ChatLine> chatLines, String messageId) {
+        if (!complete) rebuild(chatLines);
+        ChatLine line = byMessage.get(messageId);
+        if (line != null) markRemoved(line);
+    }
+
+    public static void removeUsers(List<ChatLine> chatLines, String channelId, Collection<String> userIds) {
+        if (!complete) rebuild(chatLines);
+        Map<String, Set<ChatLine>> users = byUser.get(channelId);
+        if (users == null) return;
+        List<ChatLine> removed = new ArrayList<>();
+        for (String userId : userIds) {
+            Set<ChatLine> lines = users.get(userId);
+            if (lines != null) removed.addAll(lines);
+        }
+        removed.forEach(ChatLineIndex::markRemoved);
+    }
+
+    public static void removeChannel(List<ChatLine> chatLines, String channelId) {
+        if (!complete) rebuild(chatLines);
+        Set<ChatLine> lines = byChannel.get(channelId);
+        if (lines != null) new ArrayList<>(lines).forEach(ChatLineIndex::markRemoved);
+    }
+
+    /**
+     * Marks the oldest Twitch lines for removal, so at most <code>limit</code> Twitch lines stay in the chat & the
+     * Twitch chat doesn't push out game messages. The removed messages can still be found in {@link TwitchChatHistory}.
+     *
+     * @param chatLines the chat lines
+     * @param limit     maximum amount of Twitch lines, 0 for no limit
+     * @param slack     amount of lines the limit may be exceeded by before the lines are trimmed
+     */
+    public static void trim(List<ChatLine> chatLines, int limit, int slack) {
+        if (limit <= 0) return;
+        if (!complete) rebuild(chatLines);
+        if (indexedCount <= limit + slack) return;
+        // Lines trimmed off the end of the chat are the oldest ones, so they're removed from the index first
+        while (indexedCount > limit) {
+            ChatLine line = order.pollFirst();
+            if (line == null) break;
+            if (isIndexed(line)) markRemoved(line);
+        }
+    }
+
+    /**
+     * Removes all lines of deleted messages from the chat & hands them over to {@link ChatRefreshScheduler}, which
+     * removes their wrapped lines
+     *
+     * @param chatLines the chat lines
+     */
+    public static void flush(List<ChatLine> chatLines) {
+        if (pendingRemoval.isEmpty()) return;
+        chatLines.removeIf(line -> {
+            if (!pendingRemoval.contains(line)) return false;
+            ChatRefreshScheduler.requestRemoval(line.getChatComponent());
+            return true;
+        });
+        pendingRemoval.clear();
+    }
+
+    private static void rebuild(List<ChatLine> chatLines) {
+        byMessage.clear();
+        byUser.clear();
+        byChannel.clear();
+        order.clear();
+        indexedCount = 0;
+        for (int i = chatLines.size() - 1; i >= 0; i--) {
+            ChatLine line = chatLines.get(i);
+            if (line.getChatComponent() instanceof ChatComponentTwitchMessage && !pendingRemoval.contains(line)) add(line);
+        }
+        complete = true;
+    }
+
+    private static void add(ChatLine line) {
+        ChatComponentTwitchMessage message = (ChatComponentTwitchMessage) line.getChatComponent();
+        if (!message.messageId.isEmpty()) byMessage.put(message.messageId, line);
+        byUser.computeIfAbsent(message.channelId, k -> new HashMap<>()).computeIfAbsent(message.userId, k -> new HashSet<>()).add(line);
+        byChannel.computeIfAbsent(message.channelId, k -> new HashSet<>()).add(line);
+        order.addLast(line);
+        indexedCount++;
+    }
+
+    private static boolean isIndexed(ChatLine line) {
+        Set<ChatLine> lines = byChannel.get(((ChatComponentTwitchMessage) line.getChatComponent()).channelId);
+        return lines != null && lines.contains(line);
+    }
+
+    private static void markRemoved(ChatLine line) {
+        ChatComponentTwitchMessage message = (ChatComponentTwitchMessage) line.getChatComponent();
+        byMessage.remove(message.messageId, line);
+        Map<String, Set<ChatLine>> users = byUser.get(message.channelId);
+        if (users != null) {
+            Set<ChatLine> lines = users.get(message.userId);
+            if (lines != null && lines.remove(line) && lines.isEmpty()) users.remove(message.userId);
+            if (users.isEmpty()) byUser.remove(message.channelId);
+        }
+        Set<ChatLine> lines = byChannel.get(message.channelId);
+        if (lines != null && lines.remove(line) && lines.isEmpty()) byChannel.remove(message.channelId);
+        indexedCount--;
+        pendingRemoval.add(line);
+        message.markRemoved();
+    }
+}
@@ -0,0 +1,214 @@
+package me.mini_bomba.streamchatmod.utils;
+
+import net.minecraft.client.Minecraft;
+import net.minecraft.client.gui.ChatLine;
+import net.minecraft.client.gui.GuiNewChat;
+import net.minecraft.client.gui.GuiUtilRenderComponents;
+import net.minecraft.util.IChatComponent;
+import net.minecraft.util.MathHelper;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Collects chat refresh requests & applies them once, at the end of the client tick.<br>
+ * Refreshing the chat re-wraps every line of the chat history, so instead of refreshing for every change, changes only
+ * mark what needs to be redone. If the wrapped lines of the affected messages are known, only those lines are removed or
+ * re-wrapped, otherwise the whole chat is refreshed a single time. Refreshing the vanilla chat remembers the wrapped
+ * lines of every Twitch message again, so later changes can be applied partially.<br>
+ * The wrapped lines are only known for Twitch messages added to the vanilla chat, since other chat implementations
+ * lay out their lines differently.
+ */
+public class ChatRefreshScheduler {
+    // vanilla GuiNewChat keeps this many wrapped lines
+    private static final int MAX_DRAWN_LINES = 100;
+    private static final AtomicBoolean fullRefresh = new AtomicBoolean(false);
+    private static final Set<IChatComponent> changedMessages = ConcurrentHashMap.newKeySet();
+    // client thread only
+    // message -> its wrapped lines, in the order of drawnChatLines (last line of the message first)
+    private static final Map<IChatComponent, List<ChatLine>> drawnLines = new IdentityHashMap<>();
+    private static final Set<IChatComponent> removedMessages = Collections.newSetFromMap(new IdentityHashMap<>());
+    // newest wrapped line after the last apply, used to notice the chat being refreshed or cleared by something else
+    @Nullable
+    private static ChatLine lastNewestLine = null;
+
+    /**
+     * Requests the whole chat to be refreshed at the end of the tick. May be called from any thread.
+     */
+    public static void requestRefresh() {
+        fullRefresh.set(true);
+    }
+
+    /**
+     * Requests a message that was edited in place to be wrapped again at the end of the tick. May be called from any thread.
+     *
+     * @param message the top-level component of the message
+     */
+    public static void requestRelayout(IChatComponent message) {
+        changedMessages.add(message);
+    }
+
+    /**
+     * Requests the wrapped lines of a message that was removed from the chat lines to be removed at the end of the tick.<br>
+     * <b>Must be called from the client thread</b>
+     */
+    public static void requestRemoval(IChatComponent message) {
+        removedMessages.add(message);
+    }
+
+    /**
+     * Forgets the remembered wrapped lines if the chat was refreshed or cleared since the last tick, since the chat has
+     * new wrapped lines now.<br>
+     * <b>Must be called from the client thread</b>, at the start of the tick, before any messages are added.
+     *
+     * @param drawnChatLines the wrapped lines of the vanilla chat, or null if the chat is not the vanilla one
+     */
+    public static void validate(@Nullable List<ChatLine> drawnChatLines) {
+        if (drawnChatLines == null || lastNewestLine != null && !drawnChatLines.contains(lastNewestLine))
+            drawnLines.clear();
+    }
+
+    /**
+     * Returns the first wrapped line before a message is added, to be passed to {@link #track(List, IChatComponent, ChatLine)}
+     */
+    @Nullable
+    public static ChatLine getNewestDrawnLine(@Nullable List<ChatLine> drawnChatLines) {
+        return drawnChatLines == null || drawnChatLines.isEmpty() ? null : drawnChatLines.get(0);
+    }
+
+    /**
+     * Remembers the wrapped lines of a message that was just added to the chat.<br>
+     * <b>Must be called from the client thread</b>
+     *
+     * @param drawnChatLines the wrapped chat lines, newest first
+     * @param message        the added message
+     * @param previousNewest the newest wrapped line before the message was added
+     */
+    public static void track(List<ChatLine> drawnChatLines, IChatComponent message, @Nullable ChatLine previousNewest) {
+        int end = previousNewest == null ? drawnChatLines.size() : drawnChatLines.indexOf(previousNewest);
+        if (end <= 0) return;
+        drawnLines.put(message, new ArrayList<>(drawnChatLines.subList(0, end)));
+    }
+
+    /**
+     * Applies all requests made since the last call.<br>
+     * <b>Must be called from the client thread</b>, once per tick.
+     *
+     * @param chatLines      the chat lines, newest first
+     * @param drawnChatLines the wrapped lines of the vanilla chat, or null if the chat is not the vanilla one
+     */
+    public static void apply(@Nullable List<ChatLine> chatLines, @Nullable List<ChatLine> drawnChatLines) {
+        boolean refresh = fullRefresh.getAndSet(false);
+        List<IChatComponent> changed = new ArrayList<>(changedMessages);
+        changedMessages.removeAll(changed);
+        if (!refresh && drawnChatLines != null) refresh = !applyPartial(drawnChatLines, changed);
+        else if (!refresh) refresh = !changed.isEmpty() || !removedMessages.isEmpty();
+        removedMessages.clear();
+        if (refresh && chatLines != null && drawnChatLines != null) {
+            refresh(chatLines, drawnChatLines);
+        } else if (refresh) {
+            drawnLines.clear();
+            Minecraft.getMinecraft().ingameGUI.getChatGUI().refreshChat();
+        } else if (drawnChatLines != null && drawnLines.size() > MAX_DRAWN_LINES) {
+            // Forget messages that were pushed out of the chat
+            Set<ChatLine> present = Collections.newSetFromMap(new IdentityHashMap<>());
+            present.addAll(drawnChatLines);
+            drawnLines.values().removeIf(lines -> !present.contains(lines.get(0)));
+        }
+        lastNewestLine = getNewestDrawnLine(drawnChatLines);
+    }
+
+    /**
+     * @return false if the changes could not be applied to the wrapped lines & the chat has to be refreshed
+     */
+    private static boolean applyPartial(List<ChatLine> drawnChatLines, List<IChatComponent> changed) {
+        if (changed.isEmpty() && removedMessages.isEmpty()) return true;
+        Set<ChatLine> present = Collections.newSetFromMap(new IdentityHashMap<>());
+        present.addAll(drawnChatLines);
+        Set<ChatLine> removed = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (IChatComponent message : removedMessages) {
+            List<ChatLine> lines = drawnLines.remove(message);
+            if (lines == null) return false;
+            // Lines that were already pushed out of the chat don't need to be removed
+            for (ChatLine line : lines) if (present.contains(line)) removed.add(line);
+        }
+        for (IChatComponent message : changed) {
+            if (removedMessages.contains(message)) continue;
+            List<ChatLine> lines = drawnLines.get(message);
+            // Not added to the chat yet, or added before the last full refresh
+            if (lines == null) return false;
+            int count = 0;
+            for (ChatLine line : lines) if (present.contains(line)) count++;
+            if (count == 0) {
+                drawnLines.remove(message);
+                continue;
+            }
+            // Partially pushed out of the chat, or the chat was refreshed by something else since the message was added
+            if (count != lines.size()) return false;
+        }
+        if (!removed.isEmpty()) drawnChatLines.removeIf(removed::contains);
+        for (IChatComponent message : changed) {
+            List<ChatLine> lines = drawnLines.get(message);
+            if (lines != null) drawnLines.put(message, relayout(drawnChatLines, message, lines));
+        }
+        return true;
+    }
+
+    /**
+     * Replaces the wrapped lines of a message with lines wrapped from its current contents
+     *
+     * @return the new wrapped lines
+     */
+    private static List<ChatLine> relayout(List<ChatLine> drawnChatLines, IChatComponent message, List<ChatLine> oldLines) {
+        ChatLine first = oldLines.get(0);
+        int index = drawnChatLines.indexOf(first);
+        drawnChatLines.subList(index, index + oldLines.size()).clear();
+        List<ChatLine> newLines = wrap(message, first.getUpdatedCounter(), first.getChatLineID(), getChatWidth());
+        drawnChatLines.addAll(index, newLines);
+        trim(drawnChatLines);
+        return newLines;
+    }
+
+    /**
+     * Wraps all chat lines again, like <code>GuiNewChat.refreshChat</code>, remembering the wrapped lines of Twitch messages
+     */
+    private static void refresh(List<ChatLine> chatLines, List<ChatLine> drawnChatLines) {
+        drawnLines.clear();
+        drawnChatLines.clear();
+        Minecraft.getMinecraft().ingameGUI.getChatGUI().resetScroll();
+        int width = getChatWidth();
+        for (int i = chatLines.size() - 1; i >= 0; i--) {
+            ChatLine line = chatLines.get(i);
+            List<ChatLine> lines = wrap(line.getChatComponent(), line.getUpdatedCounter(), line.getChatLineID(), width);
+            drawnChatLines.addAll(0, lines);
+            if (line.getChatComponent() instanceof ChatComponentTwitchMessage) drawnLines.put(line.getChatComponent(), lines);
+        }
+        trim(drawnChatLines);
+    }
+
+    /**
+     * Wraps a message the same way <code>GuiNewChat.setChatLine</code> does
+     *
+     * @return the wrapped lines, in the order of drawnChatLines
+     */
+    private static List<ChatLine> wrap(IChatComponent message, int updateCounter, int chatLineId, int width) {
+        List<IChatComponent> wrapped = GuiUtilRenderComponents.splitText(message, width, Minecraft.getMinecraft().fontRendererObj, false, false);
+        List<ChatLine> lines = new ArrayList<>(wrapped.size());
+        // The vanilla chat adds the wrapped lines one by one to the front, so the last line comes first
+        for (int i = wrapped.size() - 1; i >= 0; i--)
+            lines.add(new ChatLine(updateCounter, wrapped.get(i), chatLineId));
+        return lines;
+    }
+
+    private static int getChatWidth() {
+        GuiNewChat chat = Minecraft.getMinecraft().ingameGUI.getChatGUI();
+        return MathHelper.floor_float(chat.getChatWidth() / chat.getChatScale());
+    }
+
+    private static void trim(List<ChatLine> drawnChatLines) {
+        if (drawnChatLines.size() > MAX_DRAWN_LINES)
+            drawnChatLines.subList(MAX_DRAWN_LINES, drawnChatLines.size()).clear();
+    }
+}
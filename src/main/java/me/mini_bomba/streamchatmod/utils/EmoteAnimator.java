@@ -0,0 +1,44 @@
+package me.mini_bomba.streamchatmod.utils;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+/**
+ * Shared clock for emote animations.<br>
+ * Once per rendered frame, advances every animated emote that was drawn recently to its current frame, so emotes that
+ * appear many times on screen only look up their frame once. Emotes that were not drawn for a while are dropped until
+ * they are drawn again.<br>
+ * <b>All methods must be called from the client thread</b>
+ */
+public class EmoteAnimator {
+    private static final Set<StreamEmote> activeEmotes = new HashSet<>();
+    private static long time = System.currentTimeMillis();
+
+    /**
+     * Samples the clock & advances all active emotes. Called at the start of every rendered frame.
+     *
+     * @param now current time in milliseconds
+     */
+    public static void tick(long now) {
+        time = now;
+        Iterator<StreamEmote> iterator = activeEmotes.iterator();
+        while (iterator.hasNext())
+            if (!iterator.next().advance(now)) iterator.remove();
+    }
+
+    /**
+     * @return the time sampled at the start of the current frame
+     */
+    public static long getTime() {
+        return time;
+    }
+
+    public static int getActiveCount() {
+        return activeEmotes.size();
+    }
+
+    static void add(StreamEmote emote) {
+        activeEmotes.add(emote);
+    }
+}
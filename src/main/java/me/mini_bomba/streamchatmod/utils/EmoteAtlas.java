@@ -0,0 +1,192 @@
+package me.mini_bomba.streamchatmod.utils;
+
+import net.minecraft.client.renderer.GlStateManager;
+import net.minecraft.client.renderer.texture.TextureUtil;
+import org.jetbrains.annotations.Nullable;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Packs static emote images into shared atlas textures, so that consecutive emotes don't need a texture bind each.<br>
+ * Every image is scaled to at most {@link #SLOT_HEIGHT} pixels high, so each page is split into rows of that height.
+ * Space is taken from the first free span of a row that is wide enough, and freed slots are merged back into their row.<br>
+ * Apart from {@link #scale(BufferedImage)}, <b>all methods must be called from the client thread</b>
+ */
+public class EmoteAtlas {
+    // 9px chat line at the highest GUI scale
+    public static final int SLOT_HEIGHT = 36;
+    private static final int PAGE_SIZE = 1024;
+    // keeps nearest-neighbour sampling at slot edges from picking up the neighbouring emote
+    private static final int PADDING = 1;
+    private static final int ROW_HEIGHT = SLOT_HEIGHT + PADDING;
+    private static final int MAX_PAGES = 8;
+    private static final List<Page> pages = new ArrayList<>();
+
+    /**
+     * Scales an image down to the atlas slot height, keeping its aspect ratio. Can be called from any thread.
+     *
+     * @return the scaled image, or the original image if it's small enough already
+     */
+    public static BufferedImage scale(BufferedImage image) {
+        return scale(image, SLOT_HEIGHT);
+    }
+
+    /**
+     * Scales an image down to the given height, keeping its aspect ratio. Can be called from any thread.
+     *
+     * @return the scaled image, or the original image if it's small enough already
+     */
+    public static BufferedImage scale(BufferedImage image, int maxHeight) {
+        if (image.getHeight() <= maxHeight) return image;
+        int targetWidth = Math.max(1, Math.round(image.getWidth() * (float) maxHeight / image.getHeight()));
+        // Halve the image until it's close to the target size, bilinear filtering alone skips too many pixels
+        BufferedImage scaled = image;
+        while (scaled.getHeight() / 2 >= maxHeight)
+            scaled = resize(scaled, Math.max(targetWidth, scaled.getWidth() / 2), scaled.getHeight() / 2);
+        return resize(scaled, targetWidth, maxHeight);
+    }
+
+    private static BufferedImage resize(BufferedImage image, int newWidth, int newHeight) {
+        BufferedImage resized = new BufferedImage(newWidth, newHeight, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D graphics = resized.createGraphics();
+        graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        graphics.drawImage(image, 0, 0, newWidth, newHeight, null);
+        graphics.dispose();
+        return resized;
+    }
+
+    /**
+     * Copies an image into the atlas
+     *
+     * @param image the image, at most {@link #SLOT_HEIGHT} pixels high
+     * @return the slot the image was placed in, or null if the image does not fit into the atlas
+     */
+    @Nullable
+    public static Slot allocate(BufferedImage image) {
+        int imageWidth = image.getWidth();
+        int imageHeight = image.getHeight();
+        if (imageHeight > SLOT_HEIGHT || imageWidth + PADDING > PAGE_SIZE) return null;
+        Slot slot = null;
+        for (Page page : pages) {
+            slot = page.allocate(imageWidth, imageHeight);
+            if (slot != null) break;
+        }
+        if (slot == null) {
+            if (pages.size() >= MAX_PAGES) return null;
+            Page page = new Page();
+            pages.add(page);
+            slot = page.allocate(imageWidth, imageHeight);
+            if (slot == null) return null;
+        }
+        int[] data = new int[imageWidth * imageHeight];
+        image.getRGB(0, 0, imageWidth, imageHeight, data, 0, imageWidth);
+        GlStateManager.bindTexture(slot.frame.textureId);
+        TextureUtil.uploadTextureMipmap(new int[][]{data}, imageWidth, imageHeight, slot.x, slot.y, false, false);
+        return slot;
+    }
+
+    public static int getPageCount() {
+        return pages.size();
+    }
+
+    private static class Page {
+        private final int textureId;
+        private final Row[] rows = new Row[PAGE_SIZE / ROW_HEIGHT];
+
+        private Page() {
+            textureId = TextureUtil.glGenTextures();
+            TextureUtil.allocateTexture(textureId, PAGE_SIZE, PAGE_SIZE);
+            for (int i = 0; i < rows.length; i++) rows[i] = new Row(i * ROW_HEIGHT);
+        }
+
+        @Nullable
+        private Slot allocate(int slotWidth, int slotHeight) {
+            for (Row row : rows) {
+                Slot slot = row.allocate(this, slotWidth, slotHeight);
+                if (slot != null) return slot;
+            }
+            return null;
+        }
+    }
+
+    private static class Row {
+        private final int y;
+        // sorted, non-adjacent [start, end) spans of free space
+        private final List<int[]> freeSpans = new ArrayList<>();
+
+        private Row(int y) {
+            this.y = y;
+            freeSpans.add(new int[]{0, PAGE_SIZE});
+        }
+
+        @Nullable
+        private Slot allocate(Page page, int slotWidth, int slotHeight) {
+            int needed = slotWidth + PADDING;
+            for (int[] span : freeSpans) {
+                if (span[1] - span[0] < needed) continue;
+                Slot slot = new Slot(page, this, span[0], y, slotWidth, slotHeight);
+                span[0] += needed;
+                if (span[0] == span[1]) freeSpans.remove(span);
+                return slot;
+            }
+            return null;
+        }
+
+        private void free(int start, int end) {
+            int index = 0;
+            while (index < freeSpans.size() && freeSpans.get(index)[0] < start) index++;
+            int[] previous = index > 0 ? freeSpans.get(index - 1) : null;
+            int[] next = index < freeSpans.size() ? freeSpans.get(index) : null;
+            if (previous != null && previous[1] == start) {
+                previous[1] = end;
+                if (next != null && next[0] == end) {
+                    previous[1] = next[1];
+                    freeSpans.remove(index);
+                }
+            } else if (next != null && next[0] == end) {
+                next[0] = start;
+            } else {
+                freeSpans.add(index, new int[]{start, end});
+            }
+        }
+    }
+
+    /**
+     * Space taken by a single image in the atlas
+     */
+    public static class Slot {
+        public final StreamEmote.Frame frame;
+        private final Row row;
+        private final int x;
+        private final int y;
+        private final int width;
+        private final int height;
+        private boolean freed = false;
+
+        private Slot(Page page, Row row, int x, int y, int width, int height) {
+            this.row = row;
+            this.x = x;
+            this.y = y;
+            this.width = width;
+            this.height = height;
+            this.frame = new StreamEmote.Frame(page.textureId, (float) x / PAGE_SIZE, (float) y / PAGE_SIZE, (float) (x + width) / PAGE_SIZE, (float) (y + height) / PAGE_SIZE);
+        }
+
+        public long getBytes() {
+            return (long) width * height * 4;
+        }
+
+        /**
+         * Returns the space of this slot to the atlas. The slot must not be rendered afterwards.
+         */
+        public void free() {
+            if (freed) return;
+            freed = true;
+            row.free(x, x + width + PADDING);
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package me.mini_bomba.streamchatmod.utils;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shared download engine for emote & badge images.<br>
+ * Downloads run on one shared pool of daemon threads. Every host gets a limit of concurrent connections, and responses
+ * are always read to the end & closed, so the JDK's keep-alive cache can reuse the connections for the next download
+ * (it keeps up to 5 idle connections per host by default, which is why the limits stay below that).
+ * Failed downloads are retried with exponential backoff. Responses are streamed into a temporary file, which is moved
+ * over the target file once complete, so an interrupted download never leaves a broken image behind.
+ */
+public class EmoteDownloader {
+    private static final Logger LOGGER = LogManager.getLogger();
+    private static final Map<String, Integer> HOST_LIMITS = new HashMap<>();
+    private static final int DEFAULT_HOST_LIMIT = 2;
+    private static final int THREAD_COUNT = 12;
+    private static final int CONNECT_TIMEOUT = 5000;
+    private static final int READ_TIMEOUT = 10000;
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long BACKOFF_MILLIS = 500;
+    private static final Map<String, Host> hosts = new ConcurrentHashMap<>();
+    private static final ThreadPoolExecutor executor;
+
+    static {
+        HOST_LIMITS.put("static-cdn.jtvnw.net", 4);
+        HOST_LIMITS.put("cdn.betterttv.net", 4);
+        HOST_LIMITS.put("cdn.frankerfacez.com", 4);
+        AtomicInteger threadId = new AtomicInteger();
+        executor = new ThreadPoolExecutor(THREAD_COUNT, THREAD_COUNT, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "StreamChatMod Emote Downloader " + threadId.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Threads are only kept around while a sync is downloading
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Runs all download tasks on the shared download threads & waits for them to finish
+     *
+     * @param tasks the download tasks, errors should be handled by the tasks themselves
+     */
+    public static void runAll(List<Callable<Void>> tasks) {
+        if (tasks.isEmpty()) return;
+        try {
+            executor.invokeAll(tasks);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Downloads a file, retrying failed attempts. Must be called from a download task.
+     *
+     * @param url    the URL to download
+     * @param target the file to write to, replaced once the download is complete
+     * @throws IOException if every attempt failed
+     */
+    public static void download(String url, File target) throws IOException {
+        URL parsedUrl = new URL(url);
+        Host host = hosts.computeIfAbsent(parsedUrl.getHost(), name -> new Host(name, HOST_LIMITS.getOrDefault(name, DEFAULT_HOST_LIMIT)));
+        for (int attempt = 1; ; attempt++) {
+            try {
+                host.permits.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for " + host.name);
+            }
+            long start = System.nanoTime();
+            try {
+                long bytes = downloadOnce(parsedUrl, target);
+                host.downloads.incrementAndGet();
+                host.bytes.addAndGet(bytes);
+                host.nanos.addAndGet(System.nanoTime() - start);
+                return;
+            } catch (IOException e) {
+                if (attempt >= MAX_ATTEMPTS || e instanceof PermanentFailure) {
+                    host.failures.incrementAndGet();
+                    throw e;
+                }
+                host.retries.incrementAndGet();
+                LOGGER.warn("Download of " + url + " failed (" + e.getMessage() + "), retrying");
+            } finally {
+                host.permits.release();
+            }
+            try {
+                // Back off outside of the permit, so other downloads from this host can continue
+                Thread.sleep(BACKOFF_MILLIS << (attempt - 1));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                host.failures.incrementAndGet();
+                throw new InterruptedIOException("Interrupted while retrying " + url);
+            }
+        }
+    }
+
+    private static long downloadOnce(URL url, File target) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT);
+        connection.setReadTimeout(READ_TIMEOUT);
+        int status = connection.getResponseCode();
+        if (status != HttpURLConnection.HTTP_OK) {
+            // Read the error body, so the connection can be reused
+            InputStream error = connection.getErrorStream();
+            if (error != null) try (InputStream in = error) {
+                drain(in);
+            }
+            String message = "HTTP " + status + " for " + url;
+            // Only server errors & rate limits are worth retrying
+            if (status >= 500 || status == 429) throw new IOException(message);
+            throw new PermanentFailure(message);
+        }
+        File directory = target.getAbsoluteFile().getParentFile();
+        directory.mkdirs();
+        File tempFile = File.createTempFile(target.getName(), ".part", directory);
+        try {
+            long bytes = 0;
+            try (InputStream in = connection.getInputStream(); OutputStream out = new FileOutputStream(tempFile)) {
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                    bytes += read;
+                }
+            }
+            long expected = connection.getContentLengthLong();
+            if (expected >= 0 && bytes != expected)
+                throw new IOException("Truncated download of " + url + " (" + bytes + "/" + expected + " bytes)");
+            Files.move(tempFile.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return bytes;
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            tempFile.delete();
+        }
+    }
+
+    private static void drain(InputStream in) throws IOException {
+        byte[] buffer = new byte[1024];
+        //noinspection StatementWithEmptyBody
+        while (in.read(buffer) != -1) ;
+    }
+
+    /**
+     * @return download statistics of every host that was downloaded from, sorted by host name
+     */
+    public static List<HostStats> getStats() {
+        List<HostStats> stats = new ArrayList<>();
+        for (Host host : hosts.values()) stats.add(new HostStats(host));
+        stats.sort(Comparator.comparing(s -> s.host));
+        return stats;
+    }
+
+    private static class Host {
+        private final String name;
+        private final Semaphore permits;
+        private final AtomicInteger downloads = new AtomicInteger();
+        private final AtomicInteger failures = new AtomicInteger();
+        private final AtomicInteger retries = new AtomicInteger();
+        private final AtomicLong bytes = new AtomicLong();
+        // total time spent in successful downloads
+        private final AtomicLong nanos = new AtomicLong();
+
+        private Host(String name, int limit) {
+            this.name = name;
+            this.permits = new Semaphore(limit);
+        }
+    }
+
+    public static class HostStats {
+        public final String host;
+        public final int downloads;
+        public final int failures;
+        public final int retries;
+        public final long bytes;
+        // average speed of a single download, in bytes per second
+        public final double throughput;
+
+        private HostStats(Host host) {
+            this.host = host.name;
+            this.downloads = host.downloads.get();
+            this.failures = host.failures.get();
+            this.retries = host.retries.get();
+            this.bytes = host.bytes.get();
+            long nanos = host.nanos.get();
+            this.throughput = nanos > 0 ? bytes * 1e9 / nanos : 0;
+        }
+    }
+
+    /**
+     * A failure that won't go away by retrying, like a missing file
+     */
+    private static class PermanentFailure extends IOException {
+        private PermanentFailure(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package me.mini_bomba.streamchatmod.utils;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps track of the downloaded emote & badge images in <code>streamchatmod/emotes/&lt;type&gt;/</code>.<br>
+ * The directory of each emote type is listed once, the first time it's needed, and kept as a set of IDs, which is
+ * updated as images are downloaded or thrown away. Can be used from any thread.
+ */
+public class EmoteFileCache {
+    private static final Logger LOGGER = LogManager.getLogger();
+    private static final String ROOT = "streamchatmod/emotes/";
+    private static final byte[] PNG_TRAILER = {0, 0, 0, 0, 'I', 'E', 'N', 'D', (byte) 0xAE, 0x42, 0x60, (byte) 0x82};
+    private static final byte GIF_TRAILER = 0x3B;
+    private static final Map<StreamEmote.Type, Set<String>> cachedIds = new ConcurrentHashMap<>();
+
+    /**
+     * @param type      type of the emote
+     * @param id        ID of the emote
+     * @param extension file extension, without the dot
+     * @return the path the image of the emote is stored at
+     */
+    public static String getPath(StreamEmote.Type type, String id, String extension) {
+        return ROOT + getDirectoryName(type) + "/" + id + getSizeSuffix(type) + "." + extension;
+    }
+
+    /**
+     * @return true if an image of the emote was downloaded already, in any format
+     */
+    public static boolean isCached(StreamEmote.Type type, String id) {
+        return getIds(type).contains(id);
+    }
+
+    /**
+     * Records a downloaded image
+     */
+    public static void markCached(StreamEmote.Type type, String id) {
+        getIds(type).add(id);
+    }
+
+    /**
+     * Deletes a broken image, so it's downloaded again during the next sync
+     */
+    public static void invalidate(StreamEmote.Type type, String id, String path) {
+        getIds(type).remove(id);
+        if (new File(path).delete()) LOGGER.warn("Deleted broken emote image " + path);
+    }
+
+    /**
+     * Checks that an image file is complete by looking for the trailer at its end, which is the last thing written
+     * by the server. Only PNG & GIF files are checked, other files are assumed to be complete.
+     *
+     * @return false if the file is missing, empty or truncated
+     */
+    public static boolean verify(File file) {
+        String name = file.getName();
+        boolean png = name.endsWith(".png");
+        boolean gif = name.endsWith(".gif");
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            long length = in.length();
+            if (length == 0) return false;
+            if (png) {
+                if (length < PNG_TRAILER.length) return false;
+                byte[] trailer = new byte[PNG_TRAILER.length];
+                in.seek(length - trailer.length);
+                in.readFully(trailer);
+                return Arrays.equals(trailer, PNG_TRAILER);
+            }
+            if (gif) {
+                in.seek(length - 1);
+                return in.readByte() == GIF_TRAILER;
+            }
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static Set<String> getIds(StreamEmote.Type type) {
+        return cachedIds.computeIfAbsent(type, EmoteFileCache::listIds);
+    }
+
+    private static Set<String> listIds(StreamEmote.Type type) {
+        Set<String> ids = ConcurrentHashMap.newKeySet();
+        File directory = new File(ROOT + getDirectoryName(type));
+        directory.mkdirs();
+        String[] names = directory.list();
+        if (names == null) return ids;
+        String suffix = getSizeSuffix(type);
+        for (String name : names) {
+            int end = name.lastIndexOf(suffix + ".");
+            // Skips unfinished downloads & other unrelated files
+            if (end <= 0 || name.endsWith(".part")) continue;
+            ids.add(name.substring(0, end));
+        }
+        return ids;
+    }
+
+    private static String getDirectoryName(StreamEmote.Type type) {
+        switch (type) {
+            case TWITCH_GLOBAL:
+                return "twitch_global";
+            case TWITCH_CHANNEL:
+                return "twitch_channel";
+            case TWITCH_GLOBAL_BADGE:
+                return "twitch_global_badges";
+            case TWITCH_CHANNEL_BADGE:
+                return "twitch_channel_badges";
+            case BTTV_GLOBAL:
+                return "bttv_global";
+            case BTTV_CHANNEL:
+                return "bttv_channel";
+            case FFZ_GLOBAL:
+                return "ffz_global";
+            case FFZ_CHANNEL:
+                return "ffz_channel";
+            default:
+                throw new IllegalArgumentException("Unknown emote type " + type);
+        }
+    }
+
+    private static String getSizeSuffix(StreamEmote.Type type) {
+        switch (type) {
+            case BTTV_GLOBAL:
+            case BTTV_CHANNEL:
+            case FFZ_GLOBAL:
+            case FFZ_CHANNEL:
+                return "_2x";
+            default:
+                return "_3x";
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package me.mini_bomba.streamchatmod.utils;
+
+import com.github.twitch4j.helix.domain.ChatBadgeSet;
+import com.github.twitch4j.helix.domain.Emote;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * On-disk index of the emote & badge lists returned by Twitch, BTTV & FFZ, stored next to the image cache.<br>
+ * Lets the emotes be loaded at startup without any network calls. Each list remembers its ETag & when it was last fetched,
+ * so background refreshes can use conditional requests.
+ */
+public class EmoteIndex {
+    private static final Logger LOGGER = LogManager.getLogger();
+    private static final File FILE = new File("streamchatmod/emotes/index.json");
+    private static final int VERSION = 1;
+    private static final int TIMEOUT_MILLIS = 10000;
+
+    private int version = VERSION;
+    @Nullable
+    public Entry<List<Emote>> twitchGlobalEmotes;
+    @Nullable
+    public Entry<List<ChatBadgeSet>> twitchGlobalBadges;
+    public Map<String, Entry<List<ChatBadgeSet>>> twitchChannelBadges = new HashMap<>();
+    @Nullable
+    public Entry<List<BTTVEmote>> bttvGlobalEmotes;
+    public Map<String, Entry<List<BTTVEmote>>> bttvChannelEmotes = new HashMap<>();
+    @Nullable
+    public Entry<List<FFZEmote>> ffzGlobalEmotes;
+    public Map<String, Entry<List<FFZEmote>>> ffzChannelEmotes = new HashMap<>();
+
+    /**
+     * @return the stored index, or null if it does not exist or could not be read
+     */
+    @Nullable
+    public static EmoteIndex load() {
+        if (!FILE.isFile()) return null;
+        try (Reader reader = new InputStreamReader(new FileInputStream(FILE), StandardCharsets.UTF_8)) {
+            EmoteIndex index = new Gson().fromJson(reader, EmoteIndex.class);
+            if (index == null || index.version != VERSION) return null;
+            if (index.twitchChannelBadges == null) index.twitchChannelBadges = new HashMap<>();
+            if (index.bttvChannelEmotes == null) index.bttvChannelEmotes = new HashMap<>();
+            if (index.ffzChannelEmotes == null) index.ffzChannelEmotes = new HashMap<>();
+            return index;
+        } catch (IOException | JsonParseException e) {
+            LOGGER.warn("Failed to read the emote index, emotes will be synced from scratch");
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Writes the index to a temporary file & moves it over the old index, so a crash never leaves a half-written index behind
+     */
+    public synchronized void save() {
+        File tempFile = new File(FILE.getPath() + ".tmp");
+        try {
+            FILE.getParentFile().mkdirs();
+            try (Writer writer = new OutputStreamWriter(new FileOutputStream(tempFile), StandardCharsets.UTF_8)) {
+                new Gson().toJson(this, writer);
+            }
+            Files.move(tempFile.toPath(), FILE.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            LOGGER.warn("Failed to save the emote index");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @return true if the index contains all global lists & the lists of every given channel
+     */
+    public synchronized boolean isComplete(List<String> channelIds) {
+        if (twitchGlobalEmotes == null || twitchGlobalBadges == null || bttvGlobalEmotes == null || ffzGlobalEmotes == null)
+            return false;
+        for (String channelId : channelIds)
+            if (!twitchChannelBadges.containsKey(channelId) || !bttvChannelEmotes.containsKey(channelId) || !ffzChannelEmotes.containsKey(channelId))
+                return false;
+        return true;
+    }
+
+    /**
+     * Fetches a JSON resource, sending the ETag of the cached entry (if any) as If-None-Match.
+     *
+     * @param url      the URL to fetch
+     * @param cached   the previously fetched entry, may be null
+     * @param notFound data to use if the server responds with 404 (resource does not exist), may be null to treat 404 as an error
+     * @param parser   converts the response body into the entry data
+     * @return the cached entry if the resource was not modified, otherwise a new entry
+     * @throws IOException if the request failed
+     */
+    public static <T> Entry<T> fetch(String url, @Nullable Entry<T> cached, @Nullable T notFound, Parser<T> parser) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setConnectTimeout(TIMEOUT_MILLIS);
+        connection.setReadTimeout(TIMEOUT_MILLIS);
+        if (cached != null && cached.etag != null) connection.setRequestProperty("If-None-Match", cached.etag);
+        try {
+            int status = connection.getResponseCode();
+            if (status == HttpURLConnection.HTTP_NOT_MODIFIED && cached != null)
+                return new Entry<>(cached.data, cached.etag, System.currentTimeMillis());
+            if (status == HttpURLConnection.HTTP_NOT_FOUND && notFound != null)
+                return Entry.of(notFound);
+            if (status != HttpURLConnection.HTTP_OK)
+                throw new IOException("Unexpected response code " + status + " from " + url);
+            try (Reader reader = new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8)) {
+                return new Entry<>(parser.parse(reader), connection.getHeaderField("ETag"), System.currentTimeMillis());
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    public static class Entry<T> {
+        public final T data;
+        @Nullable
+        public final String etag;
+        public final long lastFetched;
+
+        public Entry(T data, @Nullable String etag, long lastFetched) {
+            this.data = data;
+            this.etag = etag;
+            this.lastFetched = lastFetched;
+        }
+
+        public static <T> Entry<T> of(T data) {
+            return new Entry<>(data, null, System.currentTimeMillis());
+        }
+    }
+
+    @FunctionalInterface
+    public interface Parser<T> {
+        T parse(Reader reader) throws IOException;
+    }
+}
@@ -0,0 +1,226 @@
+package me.mini_bomba.streamchatmod.utils;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * A single file holding many pre-scaled emotes, read through one memory mapping.<br>
+ * The file starts with an index of all entries (key, position & size of the data, size of the original image), followed
+ * by the data of every entry. Packs are never modified: compaction writes a new pack with the next generation number,
+ * since a mapped file can't be replaced on every platform. Older generations are deleted once they are no longer mapped.
+ */
+public class EmotePack {
+    private static final Logger LOGGER = LogManager.getLogger();
+    public static final EmotePack EMPTY = new EmotePack(-1, Collections.emptyMap(), null);
+    // "SCMP"
+    private static final int MAGIC = 0x53434D50;
+    private static final int VERSION = 1;
+    private static final String EXTENSION = ".pack";
+
+    public final int generation;
+    private final Map<String, Entry> entries;
+    @Nullable
+    private final MappedByteBuffer buffer;
+
+    private EmotePack(int generation, Map<String, Entry> entries, @Nullable MappedByteBuffer buffer) {
+        this.generation = generation;
+        this.entries = entries;
+        this.buffer = buffer;
+    }
+
+    /**
+     * Opens the newest readable pack in the given directory & deletes older packs
+     *
+     * @return the pack, or {@link #EMPTY} if there is none
+     */
+    public static EmotePack open(File directory) {
+        EmotePack pack = EMPTY;
+        for (int generation : listGenerations(directory)) {
+            try {
+                pack = read(getFile(directory, generation), generation);
+                break;
+            } catch (IOException e) {
+                LOGGER.warn("Failed to open emote pack " + generation);
+                e.printStackTrace();
+            }
+        }
+        deleteOlder(directory, pack.generation);
+        return pack;
+    }
+
+    private static EmotePack read(File file, int generation) throws IOException {
+        Map<String, Entry> entries = new HashMap<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) throw new IOException("Unknown file format");
+            int entryCount = in.readInt();
+            for (int i = 0; i < entryCount; i++) {
+                Entry entry = new Entry(in.readLong(), in.readInt(), in.readLong(), in.readInt(), in.readInt());
+                entries.put(in.readUTF(), entry);
+            }
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            for (Entry entry : entries.values())
+                if (entry.position < 0 || entry.position + entry.size > buffer.capacity())
+                    throw new IOException("Entry outside of the file");
+            return new EmotePack(generation, entries, buffer);
+        }
+    }
+
+    /**
+     * Writes a new pack. Entries are written in key order.
+     *
+     * @param directory  the pack directory
+     * @param generation the generation of the new pack, must be higher than the current one
+     * @param sources    the entries of the new pack, by key
+     * @return the new pack, opened
+     */
+    public static EmotePack write(File directory, int generation, Map<String, Source> sources) throws IOException {
+        directory.mkdirs();
+        List<String> keys = new ArrayList<>(sources.keySet());
+        Collections.sort(keys);
+        // The index has the same size no matter the positions, so it can be measured with placeholders first
+        ByteArrayOutputStream indexBytes = new ByteArrayOutputStream();
+        writeIndex(new DataOutputStream(indexBytes), keys, sources, 0);
+        long dataStart = indexBytes.size();
+        indexBytes.reset();
+        writeIndex(new DataOutputStream(indexBytes), keys, sources, dataStart);
+
+        File file = getFile(directory, generation);
+        File tempFile = new File(file.getPath() + ".tmp");
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(tempFile))) {
+            indexBytes.writeTo(out);
+            WritableByteChannel channel = Channels.newChannel(out);
+            for (String key : keys) {
+                ByteBuffer data = sources.get(key).data.duplicate();
+                while (data.hasRemaining()) channel.write(data);
+            }
+        }
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return read(file, generation);
+    }
+
+    private static void writeIndex(DataOutputStream out, List<String> keys, Map<String, Source> sources, long dataStart) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(keys.size());
+        long position = dataStart;
+        for (String key : keys) {
+            Source source = sources.get(key);
+            out.writeLong(position);
+            out.writeInt(source.data.remaining());
+            out.writeLong(source.sourceModified);
+            out.writeInt(source.sourceWidth);
+            out.writeInt(source.sourceHeight);
+            out.writeUTF(key);
+            position += source.data.remaining();
+        }
+        out.flush();
+    }
+
+    @Nullable
+    public Entry get(String key) {
+        return entries.get(key);
+    }
+
+    public Set<String> getKeys() {
+        return Collections.unmodifiableSet(entries.keySet());
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return a read-only view of the data of an entry of this pack
+     */
+    public ByteBuffer getData(Entry entry) {
+        if (buffer == null) throw new IllegalStateException("Empty pack has no data");
+        ByteBuffer data = buffer.duplicate();
+        data.position((int) entry.position);
+        data.limit((int) (entry.position + entry.size));
+        return data.slice();
+    }
+
+    private static File getFile(File directory, int generation) {
+        return new File(directory, generation + EXTENSION);
+    }
+
+    /**
+     * @return generations of all packs in the directory, newest first
+     */
+    public static List<Integer> listGenerations(File directory) {
+        List<Integer> generations = new ArrayList<>();
+        String[] names = directory.list();
+        if (names == null) return generations;
+        for (String name : names) {
+            if (!name.endsWith(EXTENSION)) continue;
+            try {
+                generations.add(Integer.parseInt(name.substring(0, name.length() - EXTENSION.length())));
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        generations.sort(Comparator.reverseOrder());
+        return generations;
+    }
+
+    /**
+     * Deletes all packs older than the given generation. Packs that are still mapped might not be deletable until the next start.
+     */
+    public static void deleteOlder(File directory, int generation) {
+        for (int older : listGenerations(directory)) {
+            if (older >= generation) continue;
+            //noinspection ResultOfMethodCallIgnored
+            getFile(directory, older).delete();
+        }
+    }
+
+    public static class Entry {
+        private final long position;
+        private final int size;
+        // last modification time of the original image when the entry was written
+        public final long sourceModified;
+        public final int sourceWidth;
+        public final int sourceHeight;
+
+        private Entry(long position, int size, long sourceModified, int sourceWidth, int sourceHeight) {
+            this.position = position;
+            this.size = size;
+            this.sourceModified = sourceModified;
+            this.sourceWidth = sourceWidth;
+            this.sourceHeight = sourceHeight;
+        }
+    }
+
+    /**
+     * Data of an entry that will be written into a new pack
+     */
+    public static class Source {
+        private final ByteBuffer data;
+        private final long sourceModified;
+        private final int sourceWidth;
+        private final int sourceHeight;
+
+        /**
+         * @param data the data, from its position to its limit
+         */
+        public Source(ByteBuffer data, long sourceModified, int sourceWidth, int sourceHeight) {
+            this.data = data;
+            this.sourceModified = sourceModified;
+            this.sourceWidth = sourceWidth;
+            this.sourceHeight = sourceHeight;
+        }
+    }
+}
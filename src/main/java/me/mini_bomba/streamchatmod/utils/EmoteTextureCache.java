@@ -0,0 +1,81 @@
+package me.mini_bomba.streamchatmod.utils;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Keeps track of loaded emote textures & unloads the least recently rendered emotes once they exceed the texture budget.<br>
+ * Emotes rendered within the last second are never unloaded, so the budget may be exceeded temporarily if many emotes are on screen.<br>
+ * Apart from {@link #setBudget(long)}, <b>all methods must be called from the client thread</b>.
+ */
+public class EmoteTextureCache {
+    private static final long MIN_IDLE_MILLIS = 1000;
+    // access-ordered, the least recently rendered emote comes first
+    private static final LinkedHashMap<StreamEmote, Entry> loadedEmotes = new LinkedHashMap<>(256, 0.75f, true);
+    private static final ExecutorService decoder = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "StreamChatMod Emote Decoder");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+    private static volatile long budget = 128L * 1024 * 1024;
+    private static long usedBytes = 0;
+
+    /**
+     * @param bytes maximum size of all loaded emote textures, in bytes
+     */
+    public static void setBudget(long bytes) {
+        budget = bytes;
+    }
+
+    public static long getUsedBytes() {
+        return usedBytes;
+    }
+
+    public static int getLoadedCount() {
+        return loadedEmotes.size();
+    }
+
+    static void decode(Runnable task) {
+        decoder.execute(task);
+    }
+
+    static void touch(StreamEmote emote) {
+        Entry entry = loadedEmotes.get(emote);
+        if (entry == null) return;
+        entry.lastUsed = System.currentTimeMillis();
+        if (usedBytes > budget) evict(entry.lastUsed);
+    }
+
+    static void add(StreamEmote emote, long bytes) {
+        long now = System.currentTimeMillis();
+        Entry previous = loadedEmotes.put(emote, new Entry(bytes, now));
+        if (previous != null) usedBytes -= previous.bytes;
+        usedBytes += bytes;
+        evict(now);
+    }
+
+    private static void evict(long now) {
+        Iterator<Map.Entry<StreamEmote, Entry>> iterator = loadedEmotes.entrySet().iterator();
+        while (usedBytes > budget && iterator.hasNext()) {
+            Map.Entry<StreamEmote, Entry> eldest = iterator.next();
+            if (now - eldest.getValue().lastUsed < MIN_IDLE_MILLIS) break;
+            iterator.remove();
+            usedBytes -= eldest.getValue().bytes;
+            eldest.getKey().unload();
+        }
+    }
+
+    private static class Entry {
+        private final long bytes;
+        private long lastUsed;
+
+        private Entry(long bytes, long lastUsed) {
+            this.bytes = bytes;
+            this.lastUsed = lastUsed;
+        }
+    }
+}
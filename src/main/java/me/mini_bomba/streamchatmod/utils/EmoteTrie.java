@@ -0,0 +1,117 @@
+package me.mini_bomba.streamchatmod.utils;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+
+/**
+ * An immutable trie mapping emote names to emotes, flattened into arrays.<br>
+ * Lookups run directly over a range of chars, so words don't have to be cut out of the message & hashed.
+ * Each node's outgoing edges are stored sorted, next to each other, and are binary-searched.
+ */
+public class EmoteTrie {
+    public static final EmoteTrie EMPTY = new EmoteTrie(Collections.emptyMap());
+
+    // edges of node n are edgeChars/edgeTargets[edgeStart[n] .. edgeStart[n + 1])
+    private final int[] edgeStart;
+    private final char[] edgeChars;
+    private final int[] edgeTargets;
+    private final StreamEmote[] values;
+    private final int size;
+
+    private EmoteTrie(Map<String, ? extends StreamEmote> emotes) {
+        // Build a temporary tree, then flatten it breadth-first
+        Node root = new Node();
+        int nodeCount = 1;
+        for (Map.Entry<String, ? extends StreamEmote> entry : emotes.entrySet()) {
+            Node node = root;
+            String name = entry.getKey();
+            for (int i = 0; i < name.length(); i++) {
+                Node child = node.children.get(name.charAt(i));
+                if (child == null) {
+                    child = new Node();
+                    node.children.put(name.charAt(i), child);
+                    nodeCount++;
+                }
+                node = child;
+            }
+            node.value = entry.getValue();
+        }
+        edgeStart = new int[nodeCount + 1];
+        edgeChars = new char[nodeCount - 1];
+        edgeTargets = new int[nodeCount - 1];
+        values = new StreamEmote[nodeCount];
+        List<Node> queue = new ArrayList<>(nodeCount);
+        queue.add(root);
+        int edge = 0;
+        for (int index = 0; index < queue.size(); index++) {
+            Node node = queue.get(index);
+            values[index] = node.value;
+            edgeStart[index] = edge;
+            for (Map.Entry<Character, Node> child : node.children.entrySet()) {
+                edgeChars[edge] = child.getKey();
+                edgeTargets[edge] = queue.size();
+                queue.add(child.getValue());
+                edge++;
+            }
+        }
+        edgeStart[nodeCount] = edge;
+        size = emotes.size();
+    }
+
+    /**
+     * Builds a trie from the given emotes. Entries of later maps override entries of earlier maps with the same name.
+     *
+     * @param emoteMaps maps of emote names to emotes, in order of increasing priority
+     * @return the new trie
+     */
+    @SafeVarargs
+    public static EmoteTrie of(Map<String, ? extends StreamEmote>... emoteMaps) {
+        Map<String, StreamEmote> merged = new HashMap<>();
+        for (Map<String, ? extends StreamEmote> emotes : emoteMaps) merged.putAll(emotes);
+        return new EmoteTrie(merged);
+    }
+
+    /**
+     * Looks up the emote named by the chars of <code>text</code> between <code>start</code> (inclusive) and <code>end</code> (exclusive)
+     *
+     * @return the emote, or null if there is no emote with that name
+     */
+    @Nullable
+    public StreamEmote get(CharSequence text, int start, int end) {
+        int node = 0;
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            int low = edgeStart[node];
+            int high = edgeStart[node + 1] - 1;
+            node = -1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                char edgeChar = edgeChars[middle];
+                if (edgeChar < c) low = middle + 1;
+                else if (edgeChar > c) high = middle - 1;
+                else {
+                    node = edgeTargets[middle];
+                    break;
+                }
+            }
+            if (node < 0) return null;
+        }
+        return values[node];
+    }
+
+    @Nullable
+    public StreamEmote get(String name) {
+        return get(name, 0, name.length());
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private static class Node {
+        // TreeMap keeps the edges sorted for binary search
+        private final TreeMap<Character, Node> children = new TreeMap<>();
+        private StreamEmote value = null;
+    }
+}
@@ -1,8 +1,10 @@
 package me.mini_bomba.streamchatmod.utils;
 
 import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
 import java.io.InputStreamReader;
@@ -16,31 +18,63 @@ public class FFZApi {
     private static final Logger LOGGER = LogManager.getLogger();
 
     public static List<FFZEmote> getGlobalEmotes() {
+        EmoteIndex.Entry<List<FFZEmote>> entry = getGlobalEmotes(null);
+        return entry != null ? entry.data : Collections.emptyList();
+    }
+
+    /**
+     * Fetches the global emotes, unless they have not changed since the cached entry was fetched
+     *
+     * @param cached the previously fetched entry, may be null
+     * @return the new (or cached, if not modified) entry, or null if the request failed
+     */
+    @Nullable
+    public static EmoteIndex.Entry<List<FFZEmote>> getGlobalEmotes(@Nullable EmoteIndex.Entry<List<FFZEmote>> cached) {
         Gson gson = new Gson();
         try {
-            FFZDefaultSets sets = gson.fromJson(new InputStreamReader(new URL("https://api.frankerfacez.com/v1/set/global").openStream()), FFZDefaultSets.class);
-            return sets.sets.get("3").emoticons;
-        } catch (IOException e) {
+            return EmoteIndex.fetch("https://api.frankerfacez.com/v1/set/global", cached, null, reader -> {
+                FFZDefaultSets sets = gson.fromJson(reader, FFZDefaultSets.class);
+                return sets.sets.get("3").emoticons;
+            });
+        } catch (IOException | JsonParseException e) {
             LOGGER.error("Failed to fetch FFZ global emotes:");
             e.printStackTrace();
-            return Collections.emptyList();
+            return null;
         }
     }
 
     public static List<FFZEmote> getChannelEmotes(String channelId) {
+        EmoteIndex.Entry<List<FFZEmote>> entry = getChannelEmotes(channelId, null);
+        return entry != null ? entry.data : Collections.emptyList();
+    }
+
+    /**
+     * Fetches the emotes of a channel, unless they have not changed since the cached entry was fetched
+     *
+     * @param cached the previously fetched entry, may be null
+     * @return the new (or cached, if not modified) entry, or null if the request failed
+     */
+    @Nullable
+    public static EmoteIndex.Entry<List<FFZEmote>> getChannelEmotes(String channelId, @Nullable EmoteIndex.Entry<List<FFZEmote>> cached) {
         Gson gson = new Gson();
         try {
-            FFZRoomResponse resp = gson.fromJson(new InputStreamReader(new URL("https://api.frankerfacez.com/v1/room/id/" + channelId).openStream()), FFZRoomResponse.class);
-            if (resp.room == null || !resp.sets.containsKey(String.valueOf(resp.room.set)))
-                return Collections.emptyList();
-            return resp.sets.get(String.valueOf(resp.room.set)).emoticons;
-        } catch (IOException e) {
+            return EmoteIndex.fetch("https://api.frankerfacez.com/v1/room/id/" + channelId, cached, Collections.emptyList(), reader -> {
+                FFZRoomResponse resp = gson.fromJson(reader, FFZRoomResponse.class);
+                if (resp.room == null || !resp.sets.containsKey(String.valueOf(resp.room.set)))
+                    return Collections.emptyList();
+                return resp.sets.get(String.valueOf(resp.room.set)).emoticons;
+            });
+        } catch (IOException | JsonParseException e) {
             LOGGER.error("Failed to fetch FFZ channel emotes for id " + channelId + ":");
             e.printStackTrace();
-            return Collections.emptyList();
+            return null;
         }
     }
 
+    /**
+     * @return the emotes of each channel, or null if the request failed
+     */
+    @Nullable
     public static Map<String, List<FFZEmote>> getMultiChannelEmotes(List<String> channelIds) {
         Gson gson = new Gson();
         try {
@@ -49,7 +83,7 @@ public class FFZApi {
         } catch (IOException e) {
             LOGGER.error("Failed to fetch FFZ channel emotes for ids " + String.join(",", channelIds) + ":");
             e.printStackTrace();
-            return channelIds.stream().collect(Collectors.toMap(i -> i, i -> Collections.emptyList()));
+            return null;
         }
     }
 
@@ -0,0 +1,170 @@
+package me.mini_bomba.streamchatmod.utils;
+
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Decodes animated GIFs one frame at a time.<br>
+ * Frames are composited into a single reused canvas, and each finished frame is scaled down to the emote atlas height
+ * right away, so only the scaled frames are kept in memory. Frames past {@link #MAX_FRAMES} are dropped.
+ */
+public class GifDecoder {
+    public static final int MAX_FRAMES = 256;
+    public static final int MAX_SIZE = 1024;
+    // used if a frame has no graphic control extension
+    private static final int DEFAULT_FRAME_TIME = 30;
+
+    /**
+     * @param file the GIF file
+     * @return the decoded animation
+     * @throws IOException if the file could not be read, has no frames or is larger than {@link #MAX_SIZE}
+     */
+    public static Animation decode(File file) throws IOException {
+        try (ImageInputStream stream = ImageIO.createImageInputStream(file)) {
+            if (stream == null) throw new IOException("Could not open " + file);
+            ImageReader reader = ImageIO.getImageReadersByFormatName("gif").next();
+            Graphics2D graphics = null;
+            try {
+                // Seeking forward only lets the reader discard frames that were already decoded
+                reader.setInput(stream, true, false);
+                int[] size = readLogicalScreenSize(reader);
+                if (size[0] > MAX_SIZE || size[1] > MAX_SIZE)
+                    throw new IOException("GIF is too large (" + size[0] + "x" + size[1] + ")");
+                BufferedImage canvas = new BufferedImage(size[0], size[1], BufferedImage.TYPE_INT_ARGB);
+                graphics = canvas.createGraphics();
+                List<BufferedImage> frames = new ArrayList<>();
+                long[] frameTimes = new long[16];
+                long time = 0;
+                for (int index = 0; index < MAX_FRAMES; index++) {
+                    IIOMetadata metadata;
+                    BufferedImage image;
+                    try {
+                        metadata = reader.getImageMetadata(index);
+                        image = reader.read(index);
+                    } catch (IndexOutOfBoundsException e) {
+                        // No more frames
+                        break;
+                    }
+                    FrameInfo frame = new FrameInfo(metadata, image);
+                    BufferedImage previous = frame.disposal.equals("restoreToPrevious") ? copy(canvas, frame) : null;
+                    graphics.drawImage(image, frame.x, frame.y, null);
+                    BufferedImage scaled = EmoteAtlas.scale(canvas);
+                    frames.add(scaled == canvas ? copy(canvas, null) : scaled);
+                    if (index == frameTimes.length) frameTimes = Arrays.copyOf(frameTimes, index * 2);
+                    frameTimes[index] = time;
+                    time += frame.time;
+                    // Prepare the canvas for the next frame
+                    if (frame.disposal.equals("restoreToBackgroundColor")) {
+                        graphics.setComposite(AlphaComposite.Clear);
+                        graphics.fillRect(frame.x, frame.y, frame.width, frame.height);
+                        graphics.setComposite(AlphaComposite.SrcOver);
+                    } else if (previous != null) {
+                        graphics.setComposite(AlphaComposite.Src);
+                        graphics.drawImage(previous, frame.x, frame.y, null);
+                        graphics.setComposite(AlphaComposite.SrcOver);
+                    }
+                }
+                if (frames.isEmpty()) throw new IOException("GIF has no frames");
+                return new Animation(frames, Arrays.copyOf(frameTimes, frames.size()), time, size[0], size[1]);
+            } finally {
+                if (graphics != null) graphics.dispose();
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Reads the logical screen size of a GIF. The first frame might not cover the whole logical screen.
+     *
+     * @param reader a GIF reader with its input set
+     * @return the width & height of the GIF
+     */
+    public static int[] readLogicalScreenSize(ImageReader reader) throws IOException {
+        int width = 0;
+        int height = 0;
+        NodeList streamMetaNodes = reader.getStreamMetadata().getAsTree("javax_imageio_gif_stream_1.0").getChildNodes();
+        for (int i = 0; i < streamMetaNodes.getLength(); i++) {
+            Node streamMetaNode = streamMetaNodes.item(i);
+            if (streamMetaNode.getNodeName().equals("LogicalScreenDescriptor")) {
+                height = Integer.parseInt(streamMetaNode.getAttributes().getNamedItem("logicalScreenHeight").getNodeValue());
+                width = Integer.parseInt(streamMetaNode.getAttributes().getNamedItem("logicalScreenWidth").getNodeValue());
+            }
+        }
+        if (height <= 0 || width <= 0)
+            throw new IOException("Could not find height/width of the GIF");
+        return new int[]{width, height};
+    }
+
+    /**
+     * Copies the area of a frame (or the whole image if frame is null) into a new image
+     */
+    private static BufferedImage copy(BufferedImage image, FrameInfo frame) {
+        int x = frame == null ? 0 : Math.max(0, frame.x);
+        int y = frame == null ? 0 : Math.max(0, frame.y);
+        int copyWidth = frame == null ? image.getWidth() : Math.max(1, Math.min(frame.width, image.getWidth() - x));
+        int copyHeight = frame == null ? image.getHeight() : Math.max(1, Math.min(frame.height, image.getHeight() - y));
+        BufferedImage copy = new BufferedImage(copyWidth, copyHeight, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D graphics = copy.createGraphics();
+        graphics.drawImage(image, -x, -y, null);
+        graphics.dispose();
+        return copy;
+    }
+
+    private static class FrameInfo {
+        private int x = 0;
+        private int y = 0;
+        private final int width;
+        private final int height;
+        private int time = DEFAULT_FRAME_TIME;
+        private String disposal = "none";
+
+        private FrameInfo(IIOMetadata metadata, BufferedImage image) {
+            width = image.getWidth();
+            height = image.getHeight();
+            NodeList frameMetaNodes = metadata.getAsTree("javax_imageio_gif_image_1.0").getChildNodes();
+            for (int i = 0; i < frameMetaNodes.getLength(); i++) {
+                Node frameMetaNode = frameMetaNodes.item(i);
+                NamedNodeMap frameMetaAttributes = frameMetaNode.getAttributes();
+                if (frameMetaNode.getNodeName().equals("ImageDescriptor")) {
+                    x = Integer.parseInt(frameMetaAttributes.getNamedItem("imageLeftPosition").getNodeValue());
+                    y = Integer.parseInt(frameMetaAttributes.getNamedItem("imageTopPosition").getNodeValue());
+                } else if (frameMetaNode.getNodeName().equals("GraphicControlExtension")) {
+                    time = Integer.parseInt(frameMetaAttributes.getNamedItem("delayTime").getNodeValue()) * 10;
+                    disposal = frameMetaAttributes.getNamedItem("disposalMethod").getNodeValue();
+                }
+            }
+        }
+    }
+
+    public static class Animation {
+        public final List<BufferedImage> frames;
+        // start time of each frame, sorted
+        public final long[] frameTimes;
+        public final long duration;
+        // size of the GIF before scaling
+        public final int width;
+        public final int height;
+
+        private Animation(List<BufferedImage> frames, long[] frameTimes, long duration, int width, int height) {
+            this.frames = frames;
+            this.frameTimes = frameTimes;
+            this.duration = duration;
+            this.width = width;
+            this.height = height;
+        }
+    }
+}
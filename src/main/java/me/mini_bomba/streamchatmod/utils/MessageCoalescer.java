@@ -0,0 +1,152 @@
+package me.mini_bomba.streamchatmod.utils;
+
+import me.mini_bomba.streamchatmod.StreamUtils;
+import net.minecraft.util.ChatComponentText;
+import net.minecraft.util.EnumChatFormatting;
+import net.minecraft.util.IChatComponent;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+
+/**
+ * Folds repeated messages (emote walls, copy-pastas) into the chat line of their first occurrence.<br>
+ * Messages are keyed on their channel & normalized text. A repeat within the time window of the previous occurrence only
+ * increments a counter, which is shown as the last sibling of the original message & edited in place. Only the lines of
+ * the original message are wrapped again when its counter changes.
+ */
+public class MessageCoalescer {
+    // Tag appended by some chat clients to bypass Twitch's duplicate message filter (U+E0000)
+    private static final String DUPLICATE_BYPASS = "\uDB40\uDC00";
+    private static final int MAX_ENTRIES = 1024;
+    private static final long UPDATE_INTERVAL_MILLIS = 500;
+    private final Map<String, Entry> entries = new HashMap<>();
+    private final Map<ChatComponentText, Entry> byCounter = new IdentityHashMap<>();
+    private long lastUpdate = 0;
+
+    /**
+     * Checks if a message is a repeat of a recent message in the same channel.
+     *
+     * @param channelId    the ID of the channel the message was sent in
+     * @param message      the raw message text
+     * @param now          current time in milliseconds
+     * @param windowMillis maximum time between repeats
+     * @return the counter component that should be appended to the message, or null if the message was folded into an earlier one
+     */
+    @Nullable
+    public synchronized ChatComponentText offer(String channelId, String message, long now, long windowMillis) {
+        String key = channelId + '\0' + normalize(message);
+        Entry entry = entries.get(key);
+        // Repeats of a message that was deleted from the chat start over, instead of being folded into a hidden line
+        if (entry != null && now - entry.lastSeen <= windowMillis && !entry.isRemoved()) {
+            entry.count++;
+            entry.lastSeen = now;
+            entry.dirty = true;
+            return null;
+        }
+        ChatComponentText counter = new ChatComponentText("");
+        if (entry != null || entries.size() < MAX_ENTRIES) {
+            if (entry != null) byCounter.remove(entry.counter);
+            Entry newEntry = new Entry(counter, now);
+            entries.put(key, newEntry);
+            byCounter.put(counter, newEntry);
+        }
+        return counter;
+    }
+
+    /**
+     * Remembers the message a counter was appended to, so only that message is wrapped again when the counter changes.<br>
+     * Must be called before the message is added to the chat.
+     *
+     * @param counter the counter returned by {@link #offer(String, String, long, long)}
+     * @param message the top-level component of the message
+     */
+    public synchronized void attach(ChatComponentText counter, IChatComponent message) {
+        Entry entry = byCounter.get(counter);
+        if (entry != null) entry.message = message;
+    }
+
+    /**
+     * Updates the counters of folded messages & forgets messages whose window has passed.<br>
+     * <b>Must be called from the client thread</b>, once per tick.
+     *
+     * @param now          current time in milliseconds
+     * @param windowMillis maximum time between repeats
+     */
+    public void tick(long now, long windowMillis) {
+        if (now - lastUpdate < UPDATE_INTERVAL_MILLIS) return;
+        lastUpdate = now;
+        Map<ChatComponentText, String> updated = new HashMap<>();
+        Set<IChatComponent> messages = Collections.newSetFromMap(new IdentityHashMap<>());
+        synchronized (this) {
+            Iterator<Entry> iterator = entries.values().iterator();
+            while (iterator.hasNext()) {
+                Entry entry = iterator.next();
+                if (entry.isRemoved()) {
+                    iterator.remove();
+                    byCounter.remove(entry.counter);
+                    continue;
+                }
+                if (entry.dirty) {
+                    entry.dirty = false;
+                    updated.put(entry.counter, EnumChatFormatting.GRAY + " x" + entry.count);
+                    // Messages that were not attached yet are not in the chat, they pick up the new text when added
+                    if (entry.message != null) messages.add(entry.message);
+                }
+                if (now - entry.lastSeen > windowMillis) {
+                    iterator.remove();
+                    byCounter.remove(entry.counter);
+                }
+            }
+        }
+        if (updated.isEmpty()) return;
+        updated.forEach(StreamUtils::editTextComponent);
+        messages.forEach(StreamUtils::queueRefreshMessage);
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        byCounter.clear();
+    }
+
+    /**
+     * Strips duplicate filter bypass tags & collapses whitespace
+     */
+    private static String normalize(String message) {
+        int length = message.length();
+        StringBuilder builder = new StringBuilder(length);
+        boolean pendingSpace = false;
+        for (int i = 0; i < length; i++) {
+            if (message.startsWith(DUPLICATE_BYPASS, i)) {
+                i++;
+                continue;
+            }
+            char c = message.charAt(i);
+            if (Character.isWhitespace(c)) {
+                pendingSpace = builder.length() > 0;
+                continue;
+            }
+            if (pendingSpace) builder.append(' ');
+            pendingSpace = false;
+            builder.append(c);
+        }
+        return builder.toString();
+    }
+
+    private static class Entry {
+        private final ChatComponentText counter;
+        @Nullable
+        private IChatComponent message = null;
+        private int count = 1;
+        private long lastSeen;
+        private boolean dirty = false;
+
+        private Entry(ChatComponentText counter, long lastSeen) {
+            this.counter = counter;
+            this.lastSeen = lastSeen;
+        }
+
+        private boolean isRemoved() {
+            return message instanceof ChatComponentTwitchMessage && ((ChatComponentTwitchMessage) message).isRemoved();
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package me.mini_bomba.streamchatmod.utils;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded, lock-free multi-producer single-consumer ring buffer.<br>
+ * Any thread may offer() elements, but only one thread (the client thread) may poll() them.<br>
+ * Each slot carries a sequence number, so producers claim slots with a single CAS and the consumer never blocks them.
+ *
+ * @param <E> type of the buffered elements
+ */
+public class MessageRingBuffer<E> {
+    private final AtomicReferenceArray<E> buffer;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong();
+    private volatile long tail = 0;
+
+    /**
+     * @param capacity maximum amount of buffered elements, rounded up to a power of two
+     */
+    public MessageRingBuffer(int capacity) {
+        if (capacity < 2) capacity = 2;
+        int size = Integer.highestOneBit(capacity - 1) << 1;
+        buffer = new AtomicReferenceArray<>(size);
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) sequences.set(i, i);
+        mask = size - 1;
+    }
+
+    /**
+     * Adds an element to the buffer. May be called from any thread.
+     *
+     * @param element the element to add
+     * @return false if the buffer is full and the element was not added
+     */
+    public boolean offer(E element) {
+        long position;
+        int index;
+        while (true) {
+            position = head.get();
+            index = (int) position & mask;
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (head.compareAndSet(position, position + 1)) break;
+            } else if (difference < 0)
+                return false;
+        }
+        buffer.lazySet(index, element);
+        sequences.lazySet(index, position + 1);
+        return true;
+    }
+
+    /**
+     * Removes the oldest element from the buffer. <b>Must only be called from a single consumer thread.</b>
+     *
+     * @return the oldest element, or null if the buffer is empty
+     */
+    @Nullable
+    public E poll() {
+        long position = tail;
+        int index = (int) position & mask;
+        if (sequences.get(index) != position + 1) return null;
+        E element = buffer.get(index);
+        buffer.lazySet(index, null);
+        sequences.lazySet(index, position + mask + 1);
+        tail = position + 1;
+        return element;
+    }
+
+    public int size() {
+        return (int) Math.max(0, head.get() - tail);
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+}
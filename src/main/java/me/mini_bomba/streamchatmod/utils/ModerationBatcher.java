@@ -0,0 +1,80 @@
+package me.mini_bomba.streamchatmod.utils;
+
+import java.util.*;
+
+/**
+ * Collects the users timed out & banned in each Twitch channel, so a ban wave is handled in one go.<br>
+ * A channel's batch is handed out once no new events arrived for a short while, or once the batch is a few seconds old,
+ * so messages of moderated users don't stay in chat for too long during a long wave.<br>
+ * All methods are synchronized: events are collected on the Twitch event thread, batches are taken on the client thread.
+ */
+public class ModerationBatcher {
+    private static final long QUIET_MILLIS = 500;
+    private static final long MAX_BATCH_MILLIS = 2000;
+    private final Map<String, Batch> batches = new LinkedHashMap<>();
+
+    /**
+     * Records a timed out or banned user
+     *
+     * @param channelId   the ID of the channel
+     * @param channelName the name of the channel
+     * @param userId      the ID of the user
+     * @param banned      true for bans, false for timeouts
+     * @param now         current time in milliseconds
+     */
+    public synchronized void offer(String channelId, String channelName, String userId, boolean banned, long now) {
+        Batch batch = batches.computeIfAbsent(channelId, id -> new Batch(id, channelName, now));
+        batch.lastEvent = now;
+        if (banned) {
+            batch.timedOut.remove(userId);
+            batch.banned.add(userId);
+        } else if (!batch.banned.contains(userId)) batch.timedOut.add(userId);
+    }
+
+    /**
+     * @param now current time in milliseconds
+     * @return the batches that are ready to be applied, removed from this batcher
+     */
+    public synchronized List<Batch> poll(long now) {
+        if (batches.isEmpty()) return Collections.emptyList();
+        List<Batch> ready = new ArrayList<>();
+        Iterator<Batch> iterator = batches.values().iterator();
+        while (iterator.hasNext()) {
+            Batch batch = iterator.next();
+            if (now - batch.lastEvent >= QUIET_MILLIS || now - batch.firstEvent >= MAX_BATCH_MILLIS) {
+                ready.add(batch);
+                iterator.remove();
+            }
+        }
+        return ready;
+    }
+
+    public synchronized void clear() {
+        batches.clear();
+    }
+
+    public static class Batch {
+        public final String channelId;
+        public final String channelName;
+        public final Set<String> timedOut = new HashSet<>();
+        public final Set<String> banned = new HashSet<>();
+        private final long firstEvent;
+        private long lastEvent;
+
+        private Batch(String channelId, String channelName, long now) {
+            this.channelId = channelId;
+            this.channelName = channelName;
+            this.firstEvent = now;
+            this.lastEvent = now;
+        }
+
+        /**
+         * @return IDs of all users in this batch
+         */
+        public Set<String> getUsers() {
+            Set<String> users = new HashSet<>(timedOut);
+            users.addAll(banned);
+            return users;
+        }
+    }
+}
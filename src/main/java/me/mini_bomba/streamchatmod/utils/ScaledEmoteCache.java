@@ -0,0 +1,304 @@
+package me.mini_bomba.streamchatmod.utils;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.Nullable;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * Pre-scaled copies of downloaded emotes.<br>
+ * After an emote is downloaded it's decoded once & stored as raw ARGB frames at a few heights (mip levels), matching a
+ * chat line at different GUI scales. Loading an emote then only copies the level that will be shown, instead of
+ * decoding the full-size PNG or GIF.<br>
+ * New copies of <code>streamchatmod/emotes/&lt;type&gt;/&lt;name&gt;</code> are written as loose files
+ * (<code>streamchatmod/emotes/scaled/&lt;type&gt;/&lt;name&gt;.bin</code>). {@link #compact(Collection)} merges them into
+ * a single {@link EmotePack}, which is memory-mapped once instead of opening a file for every emote.
+ */
+public class ScaledEmoteCache {
+    private static final Logger LOGGER = LogManager.getLogger();
+    private static final String SOURCE_DIR = "streamchatmod/emotes/";
+    private static final String SCALED_DIR = "streamchatmod/emotes/scaled/";
+    private static final File PACK_DIR = new File("streamchatmod/emotes/pack");
+    // "SCME"
+    private static final int MAGIC = 0x53434D45;
+    private static final int VERSION = 2;
+    // chat line height at GUI scale 1, 2 & 4, smallest first
+    private static final int[] LEVEL_HEIGHTS = {9, 18, EmoteAtlas.SLOT_HEIGHT};
+    private static volatile EmotePack pack = EmotePack.EMPTY;
+
+    /**
+     * Opens the newest emote pack. Called once before any emotes are loaded.
+     */
+    public static void openPack() {
+        pack = EmotePack.open(PACK_DIR);
+        LOGGER.info("Opened emote pack with " + pack.size() + " emotes");
+    }
+
+    private static String getKey(String sourcePath) {
+        return sourcePath.startsWith(SOURCE_DIR) ? sourcePath.substring(SOURCE_DIR.length()) : new File(sourcePath).getName();
+    }
+
+    public static File getFile(String sourcePath) {
+        return new File(SCALED_DIR + getKey(sourcePath) + ".bin");
+    }
+
+    /**
+     * Returns the size of the original image, if it's known from the emote pack.<br>
+     * Can be called from any thread.
+     *
+     * @param sourcePath path of the downloaded image
+     * @return the width & height of the image, or null if the pack has no up-to-date copy
+     */
+    @Nullable
+    public static int[] getSourceSize(String sourcePath) {
+        EmotePack.Entry entry = getPackEntry(pack, sourcePath);
+        return entry == null ? null : new int[]{entry.sourceWidth, entry.sourceHeight};
+    }
+
+    /**
+     * Writes the scaled copy of a downloaded emote, unless an up-to-date copy exists already.<br>
+     * Can be called from any thread, errors are only logged.
+     *
+     * @param sourcePath path of the downloaded image
+     * @param animated   whether the image is an animated GIF
+     */
+    public static void process(String sourcePath, boolean animated) {
+        if (isLooseUpToDate(sourcePath) || getPackEntry(pack, sourcePath) != null) return;
+        try {
+            write(sourcePath, animated);
+        } catch (Exception e) {
+            LOGGER.warn("Failed to write the scaled copy of " + sourcePath);
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Loads an emote at the smallest level that is at least <code>height</code> pixels high (or the largest level).<br>
+     * If the scaled copy is missing or outdated, it's written first.
+     *
+     * @param sourcePath path of the downloaded image
+     * @param animated   whether the image is an animated GIF
+     * @param height     preferred height in pixels
+     * @return the frames of the chosen level
+     * @throws IOException if neither the scaled copy nor the original image could be read
+     */
+    public static Level load(String sourcePath, boolean animated, int height) throws IOException {
+        try {
+            // Loose copies are newer than the pack, they were written after the last compaction
+            if (isLooseUpToDate(sourcePath))
+                return read(ByteBuffer.wrap(Files.readAllBytes(getFile(sourcePath).toPath())), height);
+            EmotePack currentPack = pack;
+            EmotePack.Entry entry = getPackEntry(currentPack, sourcePath);
+            if (entry != null) return read(currentPack.getData(entry), height);
+        } catch (IOException e) {
+            LOGGER.warn("Failed to read the scaled copy of " + sourcePath + ", writing it again");
+            e.printStackTrace();
+        }
+        List<Level> levels = write(sourcePath, animated);
+        for (Level level : levels)
+            if (level.height >= height) return level;
+        return levels.get(levels.size() - 1);
+    }
+
+    private static boolean isLooseUpToDate(String sourcePath) {
+        File file = getFile(sourcePath);
+        return file.isFile() && file.lastModified() >= new File(sourcePath).lastModified();
+    }
+
+    @Nullable
+    private static EmotePack.Entry getPackEntry(EmotePack pack, String sourcePath) {
+        EmotePack.Entry entry = pack.get(getKey(sourcePath));
+        // lastModified() is 0 if the original is gone, the packed copy is still usable then
+        return entry != null && entry.sourceModified >= new File(sourcePath).lastModified() ? entry : null;
+    }
+
+    /**
+     * Merges loose copies & still used entries of the current pack into a new pack, dropping everything else.<br>
+     * Runs on a background thread, errors are only logged.
+     *
+     * @param sourcePaths paths of all emotes that are currently in use
+     */
+    public static synchronized void compact(Collection<String> sourcePaths) {
+        EmotePack currentPack = pack;
+        Map<String, EmotePack.Source> sources = new HashMap<>();
+        List<File> merged = new ArrayList<>();
+        for (String sourcePath : sourcePaths) {
+            String key = getKey(sourcePath);
+            if (sources.containsKey(key)) continue;
+            if (isLooseUpToDate(sourcePath)) {
+                File file = getFile(sourcePath);
+                try {
+                    ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+                    int[] size = readSourceSize(data);
+                    sources.put(key, new EmotePack.Source(data, new File(sourcePath).lastModified(), size[0], size[1]));
+                    merged.add(file);
+                    continue;
+                } catch (IOException e) {
+                    LOGGER.warn("Skipping unreadable scaled copy of " + sourcePath);
+                    e.printStackTrace();
+                }
+            }
+            EmotePack.Entry entry = getPackEntry(currentPack, sourcePath);
+            if (entry != null)
+                sources.put(key, new EmotePack.Source(currentPack.getData(entry), entry.sourceModified, entry.sourceWidth, entry.sourceHeight));
+        }
+        // Every source came from the current pack & none were dropped, so the new pack would be identical
+        if (merged.isEmpty() && sources.size() == currentPack.size()) return;
+        try {
+            EmotePack newPack = EmotePack.write(PACK_DIR, currentPack.generation + 1, sources);
+            pack = newPack;
+            for (File file : merged) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+            EmotePack.deleteOlder(PACK_DIR, newPack.generation);
+            LOGGER.info("Compacted emote cache: " + newPack.size() + " emotes, " + merged.size() + " merged, " + (currentPack.size() + merged.size() - newPack.size()) + " dropped");
+        } catch (IOException e) {
+            LOGGER.error("Failed to compact the emote cache");
+            e.printStackTrace();
+        }
+    }
+
+    private static List<Level> write(String sourcePath, boolean animated) throws IOException {
+        File source = new File(sourcePath);
+        Level base;
+        int sourceWidth;
+        int sourceHeight;
+        if (animated) {
+            GifDecoder.Animation animation = GifDecoder.decode(source);
+            base = new Level(animation.frames, animation.frameTimes, animation.duration);
+            sourceWidth = animation.width;
+            sourceHeight = animation.height;
+        } else {
+            BufferedImage image = ImageIO.read(source);
+            if (image == null) throw new IOException("Unsupported image format");
+            base = new Level(Collections.singletonList(EmoteAtlas.scale(image)), new long[]{0}, 0);
+            sourceWidth = image.getWidth();
+            sourceHeight = image.getHeight();
+        }
+        List<Level> levels = new ArrayList<>(LEVEL_HEIGHTS.length);
+        for (int levelHeight : LEVEL_HEIGHTS) {
+            if (levelHeight >= base.height) {
+                levels.add(base);
+                break;
+            }
+            List<BufferedImage> frames = new ArrayList<>(base.frames.size());
+            for (BufferedImage frame : base.frames) frames.add(EmoteAtlas.scale(frame, levelHeight));
+            levels.add(new Level(frames, base.frameTimes, base.duration));
+        }
+
+        File file = getFile(sourcePath);
+        file.getParentFile().mkdirs();
+        // A unique temporary file, the download threads & the decoder thread might write the same emote at once
+        File tempFile = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(sourceWidth);
+                out.writeInt(sourceHeight);
+                out.writeInt(base.frames.size());
+                for (long frameTime : base.frameTimes) out.writeLong(frameTime);
+                out.writeLong(base.duration);
+                out.writeInt(levels.size());
+                for (Level level : levels) {
+                    out.writeInt(level.width);
+                    out.writeInt(level.height);
+                    int[] pixels = new int[level.width * level.height];
+                    ByteBuffer buffer = ByteBuffer.allocate(pixels.length * 4);
+                    for (BufferedImage frame : level.frames) {
+                        frame.getRGB(0, 0, level.width, level.height, pixels, 0, level.width);
+                        buffer.clear();
+                        buffer.asIntBuffer().put(pixels);
+                        out.write(buffer.array());
+                    }
+                }
+            }
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            tempFile.delete();
+        }
+        return levels;
+    }
+
+    private static int[] readSourceSize(ByteBuffer data) throws IOException {
+        ByteBuffer in = data.duplicate();
+        try {
+            if (in.getInt() != MAGIC || in.getInt() != VERSION) throw new IOException("Unknown file format");
+            return new int[]{in.getInt(), in.getInt()};
+        } catch (BufferUnderflowException e) {
+            throw new EOFException();
+        }
+    }
+
+    private static Level read(ByteBuffer data, int height) throws IOException {
+        ByteBuffer in = data.duplicate();
+        try {
+            if (in.getInt() != MAGIC || in.getInt() != VERSION) throw new IOException("Unknown file format");
+            // size of the original image
+            in.getInt();
+            in.getInt();
+            int frameCount = in.getInt();
+            if (frameCount <= 0 || frameCount > GifDecoder.MAX_FRAMES) throw new IOException("Invalid frame count " + frameCount);
+            long[] frameTimes = new long[frameCount];
+            for (int i = 0; i < frameCount; i++) frameTimes[i] = in.getLong();
+            long duration = in.getLong();
+            int levelCount = in.getInt();
+            for (int levelIndex = 0; levelIndex < levelCount; levelIndex++) {
+                int levelWidth = in.getInt();
+                int levelHeight = in.getInt();
+                if (levelWidth <= 0 || levelHeight <= 0 || levelWidth > GifDecoder.MAX_SIZE || levelHeight > EmoteAtlas.SLOT_HEIGHT)
+                    throw new IOException("Invalid level size " + levelWidth + "x" + levelHeight);
+                int frameBytes = levelWidth * levelHeight * 4;
+                if ((long) frameBytes * frameCount > in.remaining()) throw new EOFException();
+                if (levelHeight < height && levelIndex < levelCount - 1) {
+                    // Too small, skip to the next level
+                    in.position(in.position() + frameBytes * frameCount);
+                    continue;
+                }
+                int[] pixels = new int[levelWidth * levelHeight];
+                IntBuffer ints = in.slice().asIntBuffer();
+                List<BufferedImage> frames = new ArrayList<>(frameCount);
+                for (int i = 0; i < frameCount; i++) {
+                    ints.get(pixels);
+                    BufferedImage frame = new BufferedImage(levelWidth, levelHeight, BufferedImage.TYPE_INT_ARGB);
+                    frame.setRGB(0, 0, levelWidth, levelHeight, pixels, 0, levelWidth);
+                    frames.add(frame);
+                }
+                return new Level(frames, frameTimes, duration);
+            }
+            throw new IOException("No levels");
+        } catch (BufferUnderflowException e) {
+            throw new EOFException();
+        }
+    }
+
+    /**
+     * All frames of an emote at a single size
+     */
+    public static class Level {
+        public final List<BufferedImage> frames;
+        // start time of each frame, sorted
+        public final long[] frameTimes;
+        public final long duration;
+        public final int width;
+        public final int height;
+
+        private Level(List<BufferedImage> frames, long[] frameTimes, long duration) {
+            this.frames = frames;
+            this.frameTimes = frameTimes;
+            this.duration = duration;
+            this.width = frames.get(0).getWidth();
+            this.height = frames.get(0).getHeight();
+        }
+    }
+}
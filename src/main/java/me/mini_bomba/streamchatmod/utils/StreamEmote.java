@@ -1,142 +1,225 @@
 package me.mini_bomba.streamchatmod.utils;
 
-import com.google.common.util.concurrent.ListenableFuture;
 import me.mini_bomba.streamchatmod.StreamConfig;
 import net.minecraft.client.Minecraft;
-import net.minecraft.client.renderer.texture.DynamicTexture;
-import net.minecraft.util.ResourceLocation;
+import net.minecraft.client.gui.ScaledResolution;
+import net.minecraft.client.renderer.texture.TextureUtil;
 import net.minecraftforge.common.config.Property;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.jetbrains.annotations.Nullable;
-import org.w3c.dom.NamedNodeMap;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
 
 import javax.imageio.ImageIO;
 import javax.imageio.ImageReader;
-import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.stream.ImageInputStream;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
-import java.util.concurrent.ExecutionException;
-import java.util.stream.Collectors;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
+/**
+ * An emote or badge that can be rendered in chat.<br>
+ * Only the image dimensions are read when the emote is created. The image is decoded in the background & uploaded as
+ * textures the first time the emote is rendered; {@link EmoteTextureCache} unloads emotes that were not rendered recently.
+ */
 public abstract class StreamEmote {
     private static final Logger LOGGER = LogManager.getLogger();
-    private static final List<StreamEmote> registeredEmotes = new ArrayList<>(2048);
+    private static final int MAX_EMOTES = 65536;
+    // Read by the render thread without locking: an emote is stored before the count including it is published
+    private static final AtomicReferenceArray<StreamEmote> registeredEmotes = new AtomicReferenceArray<>(MAX_EMOTES);
+    private static volatile int emoteCount = 0;
+    private static final long ANIMATION_IDLE_MILLIS = 1000;
+    // a broken file may be replaced by the next sync, so decoding is retried after a while
+    private static final long RETRY_MILLIS = 30000;
     public final Type type;
     public final String id;
     public final int characterId;
     public final String path;
     public final String name;
-    private final List<ResourceLocation> frames;
-    private final List<Long> frameTimes;
-    private final long animationDuration;
     public final int width;
     public final int height;
     public final boolean animated;
+    // set by the decoder thread, consumed by the client thread
+    @Nullable
+    private volatile ScaledEmoteCache.Level decoded = null;
+    // time of the last failed decode, 0 if it did not fail
+    private volatile long failedAt = 0;
+    // client thread only
+    private boolean loading = false;
+    @Nullable
+    private Frame[] frames = null;
+    // set if the frame is stored in the emote atlas instead of its own texture
+    @Nullable
+    private EmoteAtlas.Slot atlasSlot = null;
+    // start time of each frame, sorted
+    private long[] frameTimes;
+    private long animationDuration;
+    // frame picked by EmoteAnimator for the current render tick
+    @Nullable
+    private Frame currentFrame = null;
+    private boolean animating = false;
+    private long lastDrawn = -1;
 
-    protected StreamEmote(Type type, String id, String path, String name, boolean animated) throws IOException, ExecutionException {
-        if (registeredEmotes.size() >= 65536) throw new RuntimeException("Emote limit reached");
+    protected StreamEmote(Type type, String id, String path, String name, boolean animated) throws IOException {
+        if (emoteCount >= MAX_EMOTES) throw new RuntimeException("Emote limit reached");
         this.type = type;
         this.id = id;
         this.path = path;
         this.name = name;
         this.animated = animated;
-        if (!animated) {
-            BufferedImage image = ImageIO.read(new File(path));
-            width = image.getWidth();
-            height = image.getHeight();
-            this.frames = Collections.singletonList(new Frame("SCM_EMOTE_" + type.name() + "_" + id, image).safeRegister());
-            this.frameTimes = Collections.singletonList(0L);
-            this.animationDuration = 0;
-        } else {
-            ImageReader reader = ImageIO.getImageReadersByFormatName("gif").next();
-            reader.setInput(ImageIO.createImageInputStream(new File(path)), false);
-            int frameNumber = reader.getNumImages(true);
-            this.frameTimes = new ArrayList<>(frameNumber);
-            // Get width/height
-            NodeList streamMetaNodes = reader.getStreamMetadata().getAsTree("javax_imageio_gif_stream_1.0").getChildNodes();
-            int imageHeight = 0;
-            int imageWidth = 0;
-            for (int i = 0; i < streamMetaNodes.getLength(); i++) {
-                Node streamMetaNode = streamMetaNodes.item(i);
-                if (streamMetaNode.getNodeName().equals("LogicalScreenDescriptor")) {
-                    imageHeight = Integer.parseInt(streamMetaNode.getAttributes().getNamedItem("logicalScreenHeight").getNodeValue());
-                    imageWidth = Integer.parseInt(streamMetaNode.getAttributes().getNamedItem("logicalScreenWidth").getNodeValue());
-                }
-            }
-            if (imageHeight <= 0 || imageWidth <= 0)
-                throw new IllegalStateException("Could not find height/width of the image!");
-            this.height = imageHeight;
-            this.width = imageWidth;
-            // Decode frames
-            long lastFrameTime = 0;
-            BufferedImage combinedFrame = new BufferedImage(imageWidth, imageHeight, BufferedImage.TYPE_INT_ARGB);
-            List<Frame> queuedFrames = new ArrayList<>(frameNumber);
-            for (int frameIndex = 0; frameIndex < frameNumber; frameIndex++) {
-                BufferedImage frame = reader.read(frameIndex);
-                IIOMetadata frameMeda = reader.getImageMetadata(frameIndex);
-                NodeList frameMetaNodes = frameMeda.getAsTree("javax_imageio_gif_image_1.0").getChildNodes();
-                int frameX = 0;
-                int frameY = 0;
-                int frameTime = 30;
-                boolean clearBuffer = true;
-                for (int i = 0; i < frameMetaNodes.getLength(); i++) {
-                    Node frameMetaNode = frameMetaNodes.item(i);
-                    NamedNodeMap frameMetaAttributes = frameMetaNode.getAttributes();
-                    if (frameMetaNode.getNodeName().equals("ImageDescriptor")) {
-                        frameX = Integer.parseInt(frameMetaAttributes.getNamedItem("imageLeftPosition").getNodeValue());
-                        frameY = Integer.parseInt(frameMetaAttributes.getNamedItem("imageTopPosition").getNodeValue());
-                    } else if (frameMetaNode.getNodeName().equals("GraphicControlExtension")) {
-                        frameTime = Integer.parseInt(frameMetaAttributes.getNamedItem("delayTime").getNodeValue()) * 10;
-                        clearBuffer = frameMetaAttributes.getNamedItem("disposalMethod").getNodeValue().equals("restoreToBackgroundColor");
-                    }
-                }
-                combinedFrame.getGraphics().drawImage(frame, frameX, frameY, null);
-                frameTimes.add(lastFrameTime);
-                lastFrameTime += frameTime;
-                queuedFrames.add(new Frame("SCM_EMOTE_" + type.name() + "_" + id + "_FRAME_" + frameIndex, combinedFrame));
-                if (clearBuffer)
-                    combinedFrame = new BufferedImage(imageWidth, imageHeight, BufferedImage.TYPE_INT_ARGB);
-            }
-            frames = batchSafeFrameRegister(queuedFrames);
-            this.animationDuration = lastFrameTime;
+        // The emote pack knows the size already, so the image doesn't need to be opened
+        int[] dimensions = ScaledEmoteCache.getSourceSize(path);
+        if (dimensions == null) dimensions = readDimensions(new File(path), animated);
+        this.width = dimensions[0];
+        this.height = dimensions[1];
+        // Emote sets are synced in parallel, so emotes can be created on several threads at once
+        synchronized (registeredEmotes) {
+            if (emoteCount >= MAX_EMOTES) throw new RuntimeException("Emote limit reached");
+            this.characterId = emoteCount;
+            registeredEmotes.set(characterId, this);
+            emoteCount = characterId + 1;
         }
-        this.characterId = registeredEmotes.size();
-        registeredEmotes.add(this);
     }
 
+    /**
+     * May be called from any thread
+     */
     @Nullable
     public static StreamEmote getEmote(int characterId) {
-        if (characterId >= registeredEmotes.size()) return null;
+        if (characterId < 0 || characterId >= emoteCount) return null;
         return registeredEmotes.get(characterId);
     }
 
-    public ResourceLocation getCurrentFrame(boolean allowAnimated) {
-        if (!animated || !allowAnimated)
-            return frames.get(0);
-        try {
-        long animationTime = System.currentTimeMillis() % animationDuration;
-        for (int i = 0; i < Math.min(frames.size(), frameTimes.size()); i++)
-            if (frameTimes.get(i) > animationTime)
-                return frames.get(i - 1);
-        return frames.get(frames.size() - 1);
-        } catch(ArithmeticException ex) {
-            return frames.get(0);
+    /**
+     * Returns the texture of the frame that should currently be shown.<br>
+     * If the emote is not loaded yet, starts loading it in the background & returns null until it's ready.<br>
+     * <b>Must be called from the client thread</b>
+     *
+     * @param allowAnimated whether animated emotes should be animated
+     * @return the current frame, or null if the emote is not loaded yet
+     */
+    @Nullable
+    public Frame getCurrentFrame(boolean allowAnimated) {
+        if (frames == null && !upload()) return null;
+        long time = EmoteAnimator.getTime();
+        if (lastDrawn != time) {
+            // First time drawn in this frame
+            lastDrawn = time;
+            EmoteTextureCache.touch(this);
+        }
+        if (!animated || !allowAnimated || animationDuration <= 0)
+            return frames[0];
+        if (!animating) {
+            animating = true;
+            EmoteAnimator.add(this);
+            advance(time);
+        }
+        return currentFrame;
+    }
+
+    /**
+     * Picks the frame that should be shown at the given time. Called by {@link EmoteAnimator} once per rendered frame.
+     *
+     * @return false if the emote was not drawn recently & should not be animated anymore
+     */
+    boolean advance(long time) {
+        if (frames == null || time - lastDrawn > ANIMATION_IDLE_MILLIS) {
+            animating = false;
+            return false;
+        }
+        int index = Arrays.binarySearch(frameTimes, time % animationDuration);
+        // Not an exact match: use the last frame that started before this time
+        if (index < 0) index = -index - 2;
+        currentFrame = frames[Math.min(index, frames.length - 1)];
+        return true;
+    }
+
+    public boolean isLoaded() {
+        return frames != null;
+    }
+
+    /**
+     * Uploads the decoded image, or schedules decoding if that has not happened yet
+     *
+     * @return true if the textures are ready
+     */
+    private boolean upload() {
+        if (failedAt != 0) {
+            if (System.currentTimeMillis() - failedAt < RETRY_MILLIS) return false;
+            failedAt = 0;
+            loading = false;
+        }
+        ScaledEmoteCache.Level image = decoded;
+        if (image == null) {
+            if (!loading) {
+                loading = true;
+                // Load the level matching the current GUI scale, 9px per scale step
+                int targetHeight = 9 * new ScaledResolution(Minecraft.getMinecraft()).getScaleFactor();
+                EmoteTextureCache.decode(() -> decode(targetHeight));
+            }
+            return false;
+        }
+        decoded = null;
+        loading = false;
+        frameTimes = image.frameTimes;
+        animationDuration = image.duration;
+        if (image.frames.size() == 1) {
+            atlasSlot = EmoteAtlas.allocate(image.frames.get(0));
+            if (atlasSlot != null) {
+                frames = new Frame[]{atlasSlot.frame};
+                EmoteTextureCache.add(this, atlasSlot.getBytes());
+                return true;
+            }
         }
+        // Animated, or the atlas is full
+        Frame[] newFrames = new Frame[image.frames.size()];
+        long bytes = 0;
+        for (int i = 0; i < newFrames.length; i++) {
+            BufferedImage frame = image.frames.get(i);
+            int textureId = TextureUtil.glGenTextures();
+            TextureUtil.uploadTextureImageAllocate(textureId, frame, false, false);
+            newFrames[i] = new Frame(textureId, 0, 0, 1, 1);
+            bytes += (long) frame.getWidth() * frame.getHeight() * 4;
+        }
+        frames = newFrames;
+        EmoteTextureCache.add(this, bytes);
+        return true;
+    }
+
+    /**
+     * Deletes the textures of this emote. They will be loaded again when the emote is rendered.<br>
+     * <b>Must be called from the client thread</b>
+     */
+    void unload() {
+        if (frames == null) return;
+        if (atlasSlot != null) {
+            atlasSlot.free();
+            atlasSlot = null;
+        } else {
+            for (Frame frame : frames) TextureUtil.deleteTexture(frame.textureId);
+        }
+        frames = null;
+        frameTimes = null;
+        currentFrame = null;
+        animating = false;
     }
 
     public static int getEmoteCount() {
-        return registeredEmotes.size();
+        return emoteCount;
     }
 
+    /**
+     * @return a copy of the list of emotes registered so far
+     */
     public static List<StreamEmote> getRegisteredEmotes() {
-        return Collections.unmodifiableList(registeredEmotes);
+        int count = emoteCount;
+        List<StreamEmote> emotes = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) emotes.add(registeredEmotes.get(i));
+        return emotes;
     }
 
     public String getCharacter() {
@@ -144,72 +227,62 @@ public abstract class StreamEmote {
         return "" + (char) (0xD800 + (code >> 10)) + (char) (0xDC00 + (code & 1023));
     }
 
-    private static List<ResourceLocation> batchFrameRegister(List<Frame> frames) {
-        return frames.stream().map(Frame::register).collect(Collectors.toCollection(() -> new ArrayList<>(frames.size())));
-    }
-
-    private static List<ResourceLocation> batchSafeFrameRegister(List<Frame> frames) throws ExecutionException {
-        if (Thread.currentThread().getId() == 1)
-            return batchFrameRegister(frames);
-        else {
-            ListenableFuture<List<ResourceLocation>> resultFuture = Minecraft.getMinecraft().addScheduledTask(() -> batchFrameRegister(frames));
-            while (true) {
-                try {
-                    return resultFuture.get();
-                } catch (InterruptedException e) {
-                    LOGGER.warn("Interrupted while waiting for batch frame registration to register");
-                    e.printStackTrace();
-                } catch (ExecutionException e) {
-                    LOGGER.error("Failed to batch-register frames");
-                    e.printStackTrace();
-                    throw e;
-                }
+    /**
+     * Reads the width & height of an image from its header, without decoding the image
+     */
+    private static int[] readDimensions(File file, boolean animated) throws IOException {
+        try (ImageInputStream stream = ImageIO.createImageInputStream(file)) {
+            if (stream == null) throw new IOException("Could not open " + file);
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+            if (!readers.hasNext()) throw new IOException("Unsupported image format: " + file);
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(stream, true, true);
+                if (animated) return GifDecoder.readLogicalScreenSize(reader);
+                int imageWidth = reader.getWidth(0);
+                int imageHeight = reader.getHeight(0);
+                if (imageHeight <= 0 || imageWidth <= 0)
+                    throw new IllegalStateException("Could not find height/width of the image!");
+                return new int[]{imageWidth, imageHeight};
+            } finally {
+                reader.dispose();
             }
         }
     }
 
-    private static class Frame {
-        private final String name;
-        private final BufferedImage texture;
-
-        private Frame(String name, BufferedImage texture) {
-            this.name = name;
-            this.texture = texture;
+    /**
+     * Loads the scaled image of this emote & hands it over to the client thread. Runs on the decoder thread.
+     *
+     * @param targetHeight preferred height of the frames, in pixels
+     */
+    private void decode(int targetHeight) {
+        try {
+            decoded = ScaledEmoteCache.load(path, animated, targetHeight);
+        } catch (Exception e) {
+            LOGGER.error("Failed to decode emote " + name + " (" + path + ")");
+            e.printStackTrace();
+            failedAt = System.currentTimeMillis();
+            // Files left behind by interrupted downloads can't be decoded, delete them so the next sync replaces them
+            if (!EmoteFileCache.verify(new File(path))) EmoteFileCache.invalidate(type, id, path);
         }
+    }
 
-        /**
-         * Registers the frame as Minecraft's DynamicTexture and returns the ResourceLocation<br>
-         * <b>NOTE: This function M U S T be called from the main thread</b> otherwise a RuntimeException is thrown by LWJGL
-         *
-         * @return the ResourceLocation of the registered frame
-         */
-        private ResourceLocation register() {
-            return Minecraft.getMinecraft().renderEngine.getDynamicTextureLocation(name, new DynamicTexture(texture));
-        }
+    /**
+     * A texture, or a part of an atlas texture, holding a single frame of an emote
+     */
+    public static class Frame {
+        public final int textureId;
+        public final float minU;
+        public final float minV;
+        public final float maxU;
+        public final float maxV;
 
-        /**
-         * Same as register(), but can be called from any thread and will automatically move into the main thread to register the frame
-         *
-         * @return the ResourceLocation of the registered frame
-         */
-        private ResourceLocation safeRegister() throws ExecutionException {
-            if (Thread.currentThread().getId() == 1)
-                return register();
-            else {
-                ListenableFuture<ResourceLocation> resultFuture = Minecraft.getMinecraft().addScheduledTask(this::register);
-                while (true) {
-                    try {
-                        return resultFuture.get();
-                    } catch (InterruptedException e) {
-                        LOGGER.warn("Interrupted while waiting for frame '" + name + "' to register");
-                        e.printStackTrace();
-                    } catch (ExecutionException e) {
-                        LOGGER.error("Failed to register frame '" + name + "'");
-                        e.printStackTrace();
-                        throw e;
-                    }
-                }
-            }
+        public Frame(int textureId, float minU, float minV, float maxU, float maxV) {
+            this.textureId = textureId;
+            this.minU = minU;
+            this.minV = minV;
+            this.maxU = maxU;
+            this.maxV = maxV;
         }
     }
 
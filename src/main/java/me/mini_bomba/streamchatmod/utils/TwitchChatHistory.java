@@ -0,0 +1,133 @@
+package me.mini_bomba.streamchatmod.utils;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+
+/**
+ * Bounded history of the Twitch messages added to the chat, kept independently of the chat GUI.<br>
+ * Messages are stored in a ring buffer, together with the index of their channel & a deleted flag in primitive arrays,
+ * so a channel's view is a single scan over an int array. Only the newest Twitch messages are kept in the chat itself,
+ * older ones can still be paged through from here. The messages are kept as parsed components & only wrapped into chat
+ * lines when a page of them is shown.<br>
+ * <b>All methods must be called from the client thread</b>
+ */
+public class TwitchChatHistory {
+    private static final int MIN_CAPACITY = 100;
+    private static ChatComponentTwitchMessage[] messages = new ChatComponentTwitchMessage[2000];
+    // index in channelIds of each message's channel
+    private static int[] channels = new int[messages.length];
+    private static boolean[] deleted = new boolean[messages.length];
+    // total amount of messages ever added, the next message goes to slot (added % capacity)
+    private static long added = 0;
+    // index of the oldest message that wasn't dropped when the capacity changed
+    private static long oldest = 0;
+    private static final List<String> channelIds = new ArrayList<>();
+    private static final Map<String, Integer> channelIndexes = new HashMap<>();
+    // lowercase channel name -> channel ID
+    private static final Map<String, String> channelNames = new HashMap<>();
+    private static final Map<String, Long> byMessageId = new HashMap<>();
+
+    /**
+     * Changes the amount of kept messages, keeping the newest ones
+     */
+    public static void setCapacity(int capacity) {
+        capacity = Math.max(MIN_CAPACITY, capacity);
+        if (capacity == messages.length) return;
+        ChatComponentTwitchMessage[] newMessages = new ChatComponentTwitchMessage[capacity];
+        int[] newChannels = new int[capacity];
+        boolean[] newDeleted = new boolean[capacity];
+        long first = Math.max(getFirst(), added - capacity);
+        for (long i = first; i < added; i++) {
+            int from = slot(i);
+            int to = (int) (i % capacity);
+            newMessages[to] = messages[from];
+            newChannels[to] = channels[from];
+            newDeleted[to] = deleted[from];
+        }
+        messages = newMessages;
+        channels = newChannels;
+        deleted = newDeleted;
+        oldest = first;
+        byMessageId.values().removeIf(i -> i < first);
+    }
+
+    public static void add(ChatComponentTwitchMessage message) {
+        int slot = slot(added);
+        ChatComponentTwitchMessage overwritten = messages[slot];
+        if (overwritten != null && !overwritten.messageId.isEmpty())
+            byMessageId.remove(overwritten.messageId, added - messages.length);
+        messages[slot] = message;
+        channels[slot] = channelIndexes.computeIfAbsent(message.channelId, id -> {
+            channelIds.add(id);
+            return channelIds.size() - 1;
+        });
+        deleted[slot] = false;
+        channelNames.put(message.channelName.toLowerCase(Locale.ROOT), message.channelId);
+        if (!message.messageId.isEmpty()) byMessageId.put(message.messageId, added);
+        added++;
+    }
+
+    public static void deleteMessage(String messageId) {
+        Long index = byMessageId.remove(messageId);
+        if (index != null && index >= getFirst()) deleted[slot(index)] = true;
+    }
+
+    public static void deleteUsers(String channelId, Collection<String> userIds) {
+        Integer channel = channelIndexes.get(channelId);
+        if (channel == null) return;
+        for (long i = getFirst(); i < added; i++) {
+            int slot = slot(i);
+            if (channels[slot] == channel && userIds.contains(messages[slot].userId)) deleted[slot] = true;
+        }
+    }
+
+    public static void deleteChannel(String channelId) {
+        Integer channel = channelIndexes.get(channelId);
+        if (channel == null) return;
+        for (long i = getFirst(); i < added; i++) {
+            int slot = slot(i);
+            if (channels[slot] == channel) deleted[slot] = true;
+        }
+    }
+
+    /**
+     * @param channelName name of a channel, in any case
+     * @return the ID of the channel, or null if no messages from it were seen
+     */
+    @Nullable
+    public static String getChannelId(String channelName) {
+        return channelNames.get(channelName.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * @param channelId the channel to list, or null for all channels
+     * @return the messages that were not deleted, newest first
+     */
+    public static List<ChatComponentTwitchMessage> getNewest(@Nullable String channelId) {
+        int channel = getChannelIndex(channelId);
+        if (channel == -2) return Collections.emptyList();
+        List<ChatComponentTwitchMessage> result = new ArrayList<>();
+        for (long i = added - 1; i >= getFirst(); i--) {
+            int slot = slot(i);
+            if ((channel == -1 || channels[slot] == channel) && !deleted[slot]) result.add(messages[slot]);
+        }
+        return result;
+    }
+
+    /**
+     * @return -1 for all channels, -2 for an unknown channel
+     */
+    private static int getChannelIndex(@Nullable String channelId) {
+        if (channelId == null) return -1;
+        return channelIndexes.getOrDefault(channelId, -2);
+    }
+
+    private static long getFirst() {
+        return Math.max(oldest, added - messages.length);
+    }
+
+    private static int slot(long index) {
+        return (int) (index % messages.length);
+    }
+}